@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.emu10kj.Accumulator;
+
+/**
+ * A chain of additions into {@link Accumulator}, against the same chain kept
+ * in locals with its static helpers (as the generated code does), and a plain
+ * <code>long</code>, which wraps around on long chains.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AccumulatorBenchmark {
+    private static final int COUNT = 256;
+
+    private final Accumulator acc = new Accumulator();
+    private long[] values;
+
+    @Setup
+    public void setup() {
+        values = new long[COUNT];
+        Random rng = new Random(0);
+        for (int i = 0; i < COUNT; ++i) {
+            // Full products, as MACMV adds them
+            values[i] = (long) rng.nextInt() * rng.nextInt();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public long accumulator() {
+        acc.write(0);
+        for (int i = 0; i < COUNT; ++i) {
+            acc.add(values[i]);
+        }
+        return acc.read();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public long locals() {
+        long low = 0;
+        int high = 0;
+        for (int i = 0; i < COUNT; ++i) {
+            long sum = low + values[i];
+            high = Accumulator.addHigh(high, low, values[i], sum);
+            low = sum;
+        }
+        return Accumulator.saturate(high, low);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public long primitive() {
+        long acc = 0;
+        for (int i = 0; i < COUNT; ++i) {
+            acc += values[i];
+        }
+        return acc;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj.benchmarks;
+
+import static com.github.wolf480pl.emu10kj.AddressSpaceUtils.arr;
+import static com.github.wolf480pl.emu10kj.AddressSpaceUtils.split;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.emu10kj.AddressSpace;
+
+/**
+ * {@link com.github.wolf480pl.emu10kj.SplitAddressSpace} access at each nesting depth of the
+ * DSP address space.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AddressSpaceBenchmark {
+    private static final int WIDTH = 10;
+    private static final int SIZE = 1 << WIDTH;
+
+    @Param({ "1", "2", "3" })
+    public int depth;
+
+    private AddressSpace space;
+
+    @Setup
+    public void setup() {
+        space = build(WIDTH, depth);
+        Programs.fill(space, SIZE, 0);
+    }
+
+    private static AddressSpace build(int width, int depth) {
+        if (depth == 0) {
+            return arr(1 << width);
+        }
+        return split(width, 2, build(width - 2, depth - 1), build(width - 2, depth - 1), build(width - 2, depth - 1),
+                build(width - 2, depth - 1));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int read() {
+        int sum = 0;
+        for (int i = 0; i < SIZE; ++i) {
+            sum += space.read(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public void write() {
+        for (int i = 0; i < SIZE; ++i) {
+            space.write(i, i);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.emu10kj.BytecodeCompiler;
+import com.github.wolf480pl.emu10kj.Emu10k1;
+import com.github.wolf480pl.emu10kj.Engine;
+import com.github.wolf480pl.emu10kj.LockstepGroup;
+import com.github.wolf480pl.emu10kj.Program;
+import com.github.wolf480pl.emu10kj.ThreadedEngine;
+
+/**
+ * A block of frames on many instances running the same program: in lockstep
+ * with {@link LockstepGroup}, against ticking each of them with one of the
+ * scalar engines.
+ * <p>
+ * Reports ns per block of <code>BLOCK</code> frames on all the instances.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LockstepBenchmark {
+    private static final int BLOCK = 64;
+
+    @Param({ "threaded", "bytecode" })
+    public String engine;
+
+    @Param({ "8", "64" })
+    public int instances;
+
+    @Param({ "512" })
+    public int instructions;
+
+    private Emu10k1[] dsps;
+    private LockstepGroup group;
+
+    @Setup
+    public void setup() {
+        Program program = Programs.realistic(instructions, 0);
+        // One engine for all the instances, so that they share the generated code
+        Engine scalar = engine.equals("bytecode") ? new BytecodeCompiler() : new ThreadedEngine();
+        dsps = new Emu10k1[instances];
+        Emu10k1[] lanes = new Emu10k1[instances];
+        for (int i = 0; i < instances; ++i) {
+            dsps[i] = Programs.newDsp();
+            dsps[i].loadProgram(program, scalar);
+            lanes[i] = Programs.newDsp();
+        }
+        group = new LockstepGroup(program, lanes);
+    }
+
+    @Benchmark
+    public void lockstep() {
+        group.tickBlock(BLOCK);
+    }
+
+    @Benchmark
+    public void separate() {
+        for (Emu10k1 dsp : dsps) {
+            dsp.tickBlock(BLOCK);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.emu10kj.Emu10k1;
+import com.github.wolf480pl.emu10kj.Opcodes;
+import com.github.wolf480pl.emu10kj.Program;
+
+/**
+ * Cost of a single instruction in {@link com.github.wolf480pl.emu10kj.InterpretedProgram}, per opcode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpcodeBenchmark {
+    private static final int COUNT = 64;
+
+    @Param({ "MACS", "MACW", "MACINTS", "ACC3", "MACMV", "ANDXOR", "TESTNEG", "LIMIT", "LOG", "EXP", "INTERP" })
+    public String opcode;
+
+    private Emu10k1 dsp;
+    private Program program;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        dsp = Programs.newDsp();
+        program = Programs.repeat(Opcodes.class.getField(opcode).getByte(null), COUNT);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void instruction() {
+        program.run(dsp);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj.benchmarks;
+
+import java.util.Random;
+
+import com.github.wolf480pl.emu10kj.AddressSpace;
+import com.github.wolf480pl.emu10kj.Emu10k1;
+import com.github.wolf480pl.emu10kj.Instruction;
+import com.github.wolf480pl.emu10kj.InterpretedProgram;
+import com.github.wolf480pl.emu10kj.Opcodes;
+import com.github.wolf480pl.emu10kj.PlanarIO;
+import com.github.wolf480pl.emu10kj.Program;
+import com.github.wolf480pl.emu10kj.TRAM;
+
+/**
+ * Programs and DSP instances shared by the benchmarks.
+ */
+public final class Programs {
+    public static final int SAMPLE_RATE = 48000;
+    public static final int XTRAM_SIZE = 1 << 16;
+    public static final int MAX_BLOCK = 1024;
+
+    /**
+     * Rough opcode mix of real effect patches: mostly multiply-accumulate,
+     * some interpolation, limiting and logic.
+     */
+    private static final byte[] MIX = new byte[] {
+            Opcodes.MACS, Opcodes.MACS, Opcodes.MACS, Opcodes.MACS, Opcodes.MACS, Opcodes.MACS, Opcodes.MACS, Opcodes.MACS,
+            Opcodes.MACSN, Opcodes.MACW, Opcodes.MACW, Opcodes.MACINTS, Opcodes.ACC3, Opcodes.ACC3, Opcodes.MACMV,
+            Opcodes.MACMV, Opcodes.INTERP, Opcodes.INTERP, Opcodes.LIMIT, Opcodes.TESTNEG, Opcodes.ANDXOR };
+
+    private Programs() {
+    }
+
+    public static Emu10k1 newDsp() {
+        return newDsp(MAX_BLOCK);
+    }
+
+    public static Emu10k1 newDsp(int maxBlock) {
+        Emu10k1 dsp = new Emu10k1(new PlanarIO(maxBlock), new PlanarIO(maxBlock), new TRAM(XTRAM_SIZE));
+        Random rng = new Random(0);
+        for (int i = 0; i < Emu10k1.GPR_COUNT; ++i) {
+            dsp.writeMemDsp((short) (Emu10k1.GPR_START + i), rng.nextInt());
+        }
+        for (int i = 0; i < Emu10k1.ITRAM_REGS; ++i) {
+            dsp.writeMemDsp((short) (Emu10k1.ITRAM_ADDR_START + i), rng.nextInt(Emu10k1.ITRAM_SIZE));
+        }
+        for (int i = 0; i < Emu10k1.XTRAM_REGS; ++i) {
+            dsp.writeMemDsp((short) (Emu10k1.XTRAM_ADDR_START + i), rng.nextInt(XTRAM_SIZE));
+        }
+        return dsp;
+    }
+
+    /**
+     * A program of <code>count</code> random instructions with a realistic
+     * opcode mix, reading inputs, GPRs, constants and TRAM, and writing GPRs,
+     * outputs and TRAM.
+     */
+    public static Program realistic(int count, long seed) {
+        Random rng = new Random(seed);
+        Instruction[] code = new Instruction[count];
+        for (int i = 0; i < count; ++i) {
+            byte op = MIX[rng.nextInt(MIX.length)];
+            code[i] = new Instruction(op, dest(rng), source(rng, true), source(rng, false), source(rng, false));
+        }
+        return new InterpretedProgram(code, Emu10k1.GPR_COUNT, Emu10k1.ITRAM_SIZE, XTRAM_SIZE);
+    }
+
+    /**
+     * A program of <code>count</code> copies of one opcode working on GPRs.
+     */
+    public static Program repeat(byte opcode, int count) {
+        Instruction[] code = new Instruction[count];
+        for (int i = 0; i < count; ++i) {
+            code[i] = new Instruction(opcode, gpr(i), gpr(i + 1), gpr(i + 2), gpr(i + 3));
+        }
+        return new InterpretedProgram(code, Emu10k1.GPR_COUNT, 0, 0);
+    }
+
+    public static void fill(AddressSpace space, int size, long seed) {
+        Random rng = new Random(seed);
+        for (int i = 0; i < size; ++i) {
+            space.write(i, rng.nextInt());
+        }
+    }
+
+    private static short gpr(int idx) {
+        return (short) (Emu10k1.GPR_START + idx % 64);
+    }
+
+    private static short dest(Random rng) {
+        int kind = rng.nextInt(10);
+        if (kind < 6) {
+            return gpr(rng.nextInt(64));
+        } else if (kind < 7) {
+            return (short) (Emu10k1.EXT_OUT_START + rng.nextInt(16));
+        } else if (kind < 9) {
+            return (short) (Emu10k1.ITRAM_DATA_START + rng.nextInt(32));
+        }
+        return (short) (Emu10k1.XTRAM_DATA_START + rng.nextInt(Emu10k1.XTRAM_REGS));
+    }
+
+    private static short source(Random rng, boolean allowAccu) {
+        int kind = rng.nextInt(12);
+        if (kind < 5) {
+            return gpr(rng.nextInt(64));
+        } else if (kind < 7) {
+            return (short) (Emu10k1.CONST_START + rng.nextInt(Emu10k1.CONST_END - Emu10k1.CONST_START + 1));
+        } else if (kind < 8) {
+            return (short) (Emu10k1.FX_START + rng.nextInt(16));
+        } else if (kind < 9) {
+            return (short) (Emu10k1.EXT_IN_START + rng.nextInt(16));
+        } else if (kind < 10) {
+            return (short) (Emu10k1.ITRAM_DATA_START + rng.nextInt(32));
+        } else if (kind < 11 && allowAccu) {
+            return Emu10k1.ACCU;
+        }
+        return (short) (Emu10k1.XTRAM_DATA_START + rng.nextInt(Emu10k1.XTRAM_REGS));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.emu10kj.BytecodeCompiler;
+import com.github.wolf480pl.emu10kj.Emu10k1;
+import com.github.wolf480pl.emu10kj.ThreadedEngine;
+
+/**
+ * Full {@link Emu10k1#tick()} with a realistic program, for every engine.
+ * <p>
+ * <code>tick</code> and <code>block</code> report ns per sample frame.
+ * <code>realtime</code> reports, as the <code>realtimeInstances</code>
+ * counter, how many instances one core could run in real time at 48 kHz.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TickBenchmark {
+    private static final int BLOCK = 64;
+
+    @Param({ "interpreted", "threaded", "bytecode", "kernel" })
+    public String engine;
+
+    /**
+     * Kernels only fit small programs, bigger ones fall back to bytecode.
+     */
+    @Param({ "16", "512" })
+    public int instructions;
+
+    private Emu10k1 dsp;
+
+    @Setup
+    public void setup() {
+        dsp = Programs.newDsp();
+        load(dsp, engine, instructions);
+    }
+
+    static void load(Emu10k1 dsp, String engine, int instructions) {
+        switch (engine) {
+            case "interpreted":
+                dsp.loadProgram(Programs.realistic(instructions, 0));
+                break;
+            case "threaded":
+                dsp.loadProgram(Programs.realistic(instructions, 0), new ThreadedEngine());
+                break;
+            case "bytecode":
+                dsp.loadProgram(Programs.realistic(instructions, 0), new BytecodeCompiler());
+                break;
+            case "kernel":
+                dsp.loadProgram(Programs.realistic(instructions, 0), new BytecodeCompiler(true));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void tick() {
+        dsp.tick();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(BLOCK)
+    public void block() {
+        dsp.tickBlock(BLOCK);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void realtime(Realtime counters) {
+        dsp.tick();
+        counters.realtimeInstances += Realtime.PER_TICK;
+    }
+
+    /**
+     * Counts real-time seconds of audio, so that once JMH divides it by the
+     * wall-clock time it becomes instances per core.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Realtime {
+        static final double PER_TICK = 1.0 / Programs.SAMPLE_RATE;
+
+        public double realtimeInstances;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            realtimeInstances = 0;
+        }
+    }
+}
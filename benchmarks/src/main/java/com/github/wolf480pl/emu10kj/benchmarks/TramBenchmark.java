@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.emu10kj.AddressSpaceUtils;
+import com.github.wolf480pl.emu10kj.Emu10k1;
+import com.github.wolf480pl.emu10kj.TRAM;
+import com.github.wolf480pl.emu10kj.TramSpace;
+
+/**
+ * Delay line access, both directly in {@link TRAM} and through the address
+ * registers of a {@link TramSpace}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TramBenchmark {
+    private static final int REGS = Emu10k1.ITRAM_REGS;
+
+    private static final int BLOCK = 64;
+
+    private TRAM tram;
+    private TramSpace tramSpace;
+    private int[] addrs;
+    private int[] block;
+    private int offset;
+
+    @Setup
+    public void setup() {
+        tram = new TRAM(Emu10k1.ITRAM_SIZE);
+        Programs.fill(tram, Emu10k1.ITRAM_SIZE, 0);
+        addrs = new int[REGS];
+        Random rng = new Random(1);
+        for (int i = 0; i < REGS; ++i) {
+            addrs[i] = rng.nextInt(Emu10k1.ITRAM_SIZE);
+        }
+        tramSpace = AddressSpaceUtils.tram(tram, addrs);
+        block = new int[BLOCK];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGS)
+    public int tramRead() {
+        int sum = 0;
+        int off = ++offset;
+        for (int i = 0; i < REGS; ++i) {
+            sum += tram.read(off + addrs[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGS)
+    public void tramWrite() {
+        int off = ++offset;
+        for (int i = 0; i < REGS; ++i) {
+            tram.write(off + addrs[i], i);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGS)
+    public int tramSpaceRead() {
+        int sum = 0;
+        tramSpace.setOffset(++offset);
+        for (int i = 0; i < REGS; ++i) {
+            sum += tramSpace.read(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGS)
+    public void tramSpaceWrite() {
+        tramSpace.setOffset(++offset);
+        for (int i = 0; i < REGS; ++i) {
+            tramSpace.write(i, i);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGS * BLOCK)
+    public int tramSpaceReadBlock() {
+        int sum = 0;
+        tramSpace.setOffset(offset += BLOCK);
+        for (int i = 0; i < REGS; ++i) {
+            tramSpace.readBlock(i, block, 0, BLOCK);
+            sum += block[BLOCK - 1];
+        }
+        return sum;
+    }
+}
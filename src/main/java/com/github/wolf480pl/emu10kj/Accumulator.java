@@ -1,4 +1,5 @@
 package com.github.wolf480pl.emu10kj;
+
 /*
  * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
  * This program is licensed under the GNU Lesser General Public License.
@@ -17,105 +18,104 @@ package com.github.wolf480pl.emu10kj;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+/**
+ * The 67-bit accumulator, as a two's complement value split into the low 64
+ * bits and the 3 bits above them (sign-extended to an int).
+ * <p>
+ * All operations work in place and never allocate. The static methods do the
+ * same arithmetic on a (high, low) pair, so that engines can keep the
+ * accumulator in local variables, and only touch the object at the end.
+ */
 public class Accumulator {
-    public static final int BITS = 67 - 1; // Subtract the sign bit
+    public static final int BITS = 67;
+    private static final int HIGH_SHIFT = 32 - (BITS - 64);
 
-    /**
-     * Little endian absolute value
-     */
-    private int[] value;
-    private boolean negative;
+    private long low;
+    private int high;
+
+    public long getLow() {
+        return low;
+    }
 
-    public Accumulator() {
-        this.value = new int[3];
+    public int getHigh() {
+        return high;
     }
 
+    /**
+     * The value, saturated to the range of a long.
+     */
     public long read() {
-        long x = value[1] << 32 | value[0];
-        return negative ? -x : x;
+        return saturate(high, low);
+    }
+
+    /**
+     * The value, saturated to the range of an int, as written to R by the
+     * saturating opcodes.
+     */
+    public int clamp() {
+        return clamp(high, low);
     }
 
     public void write(long val) {
-        if (val < 0) {
-            negative = true;
-            val = -val;
-        } else {
-            negative = false;
-        }
-        value[0] = (int) val;
-        value[1] = (int) val >>> 32;
-        value[2] = 0;
+        low = val;
+        high = (int) (val >> 63);
+    }
+
+    public void write(int high, long low) {
+        this.high = wrap(high);
+        this.low = low;
     }
 
     public void add(long val) {
-        if (val == 0) {
-            return;
-        }
-        boolean valNeg = val < 0;
-        if (valNeg) {
-            val = -val;
-        }
-        long low = val & 0xffffffffL;
-        long hi = val >>> 32;
-        if (valNeg == negative) {
-            add(hi, low);
-        }
-        int cmp = compareAbs(hi, low);
-        if (cmp == 0) {
-            value[0] = value[1] = value[2] = 0;
-            negative = false;
-            return;
-        }
-        if (cmp < 0) {
-            // we have smaller magnitude than val, so we're at most 63 bits
-            // swap the operands and change the resulting sign
-            assert (value[2] == 0);
-            long hi1 = value[1] & 0xffffffffL;
-            value[1] = (int) hi;
-            hi = hi1;
-            long low1 = value[0] & 0xffffffffL;
-            value[0] = (int) low;
-            low = low1;
-            negative = !negative;
-        }
-        subtract(hi, low);
+        long sum = low + val;
+        high = addHigh(high, low, val, sum);
+        low = sum;
     }
 
-    protected void add(long hi, long low) {
-        long v0 = low + (value[0] & 0xffffffffL);
-        long v1 = hi + (value[1] & 0xffffffffL) + (v0 >>> 32);
-        long v2 = value[2] + (v1 >>> 32);
-        value[0] = (int) v0;
-        value[1] = (int) v1;
-        //TODO: implement accumulator signed overflow
-        value[2] = (int) (v2 & ((1 << (BITS - 64)) - 1));
+    /**
+     * Whether the value fits in a long.
+     */
+    public boolean isNarrow() {
+        return isNarrow(high, low);
     }
 
-    protected void subtract(long hi, long low) {
-        long v0 = (value[0] & 0xffffffffL) - low;
-        if (v0 < 0) {
-            v0 += 1L << 32;
-            hi += 1;
-        }
-        long v1 = (value[1] & 0xffffffffL) - hi;
-        if (v1 < 0) {
-            v1 += 1L << 32;
-            value[2] -= 1;
-        }
+    public static boolean isNarrow(int high, long low) {
+        return high == (int) (low >> 63);
     }
 
-    protected int compareAbs(long hi, long low) {
-        if (value[2] != 0) {
-            return 1;
-        }
-        long v1 = value[1] & 0xffffffffL;
-        if (hi != v1) {
-            return (v1 > hi) ? 1 : -1;
+    /**
+     * Whether the value fits in an int, i.e. R got it without saturating or
+     * wrapping around.
+     */
+    public static boolean fitsInt(int high, long low) {
+        return isNarrow(high, low) && low == (int) low;
+    }
+
+    /**
+     * Computes the high bits of <code>(high, low) + val</code>, given that
+     * the low 64 bits of it are <code>sum</code>.
+     */
+    public static int addHigh(int high, long low, long val, long sum) {
+        // Unsigned carry out of bit 63
+        int carry = (int) (((low & val) | ((low | val) & ~sum)) >>> 63);
+        return wrap(high + (int) (val >> 63) + carry);
+    }
+
+    public static long saturate(int high, long low) {
+        if (isNarrow(high, low)) {
+            return low;
         }
-        long v0 = value[0] & 0xffffffffL;
-        if (low != v0) {
-            return (v0 > low) ? 1 : -1;
+        return high < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+    }
+
+    public static int clamp(int high, long low) {
+        if (isNarrow(high, low)) {
+            return Alu.clamp(low);
         }
-        return 0;
+        return high < 0 ? Alu.MIN_VALUE : Alu.MAX_VALUE;
+    }
+
+    private static int wrap(int high) {
+        return high << HIGH_SHIFT >> HIGH_SHIFT;
     }
 }
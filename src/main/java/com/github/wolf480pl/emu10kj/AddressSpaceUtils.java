@@ -17,8 +17,6 @@
  */
 package com.github.wolf480pl.emu10kj;
 
-import com.github.wolf480pl.emu10kj.TramSpace.OffsetReg;
-
 public class AddressSpaceUtils {
 
     private AddressSpaceUtils() {
@@ -40,7 +38,7 @@ public class AddressSpaceUtils {
         return new SplitAddressSpace(32 - width, bits, spaces);
     }
 
-    public static AddressSpace tram(AddressSpace backend, OffsetReg offset, int[] addrRegs) {
-        return new TramSpace(backend, offset, addrRegs);
+    public static TramSpace tram(AddressSpace backend, int[] addrRegs) {
+        return new TramSpace(backend, addrRegs);
     }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * Arithmetic of the fx8010 opcodes, shared by all the execution engines.
+ * <p>
+ * Every method here is a pure function of its operands, so that generated
+ * code can call it directly and the JIT can inline it.
+ * For the MAC family the returned value is the term added to the
+ * {@link Accumulator} (ACC3 adds X and Y as they are), and the value stored in
+ * R is derived from it with {@link Accumulator#clamp()} (for the saturating
+ * variants) or by taking its low 32 bits (for the wrapping ones).
+ * When A is the accumulator, the other opcodes see it saturated to a long.
+ * For the other opcodes the returned int is written both to R and to the
+ * accumulator.
+ */
+public final class Alu {
+    public static final int MAX_VALUE = Integer.MAX_VALUE;
+    public static final int MIN_VALUE = Integer.MIN_VALUE;
+
+    // CCR flags
+    public static final int CC_NORMALIZED = 0x1;
+    public static final int CC_BORROW = 0x2;
+    public static final int CC_MINUS = 0x4;
+    public static final int CC_ZERO = 0x8;
+    public static final int CC_SATURATE = 0x10;
+    public static final int CC_NONZERO = 0x100;
+
+    /**
+     * SKIP test that is true regardless of the flags.
+     */
+    public static final int SKIP_ALWAYS = 0x7fffffff;
+
+    private Alu() {
+    }
+
+    /**
+     * The product added to the accumulator by MACS and MACW.
+     */
+    public static long macs(int x, int y) {
+        return (long) x * y >> 31;
+    }
+
+    /**
+     * The product added to the accumulator by MACSN and MACWN.
+     */
+    public static long macsn(int x, int y) {
+        return -(long) x * y >> 31;
+    }
+
+    /**
+     * The product added to the accumulator by MACINTS, MACINTW and MACMV.
+     */
+    public static long macints(int x, int y) {
+        /*
+         * TODO: With MACINTW, the result is wrapped around but the
+         * sign bit (bit 31) is zeroed. Essentially the wrap around
+         * occurs around bit 30 instead of bit 31 (I have no idea
+         * why this would be useful).
+         */
+        // TODO: You sure there's no shift here for MACMV?
+        return (long) x * y;
+    }
+
+    public static int andxor(int a, int x, int y) {
+        return (a & x) ^ y;
+    }
+
+    public static int testneg(long a, int x, int y) {
+        // Use long for comparing A and Y, cause A can be accu.
+        return (a >= y) ? x : -x;
+    }
+
+    public static int limit(long a, int x, int y) {
+        return (a >= y) ? x : y;
+    }
+
+    public static int limitl(long a, int x, int y) {
+        return (a >= y) ? y : x;
+    }
+
+    public static int log(long la, int x, int y) {
+        // A is linear input, X is max_exp, Y is sign_reg
+        int a = (int) la;
+        boolean negative = la < 0;
+        int lin = negative ? -a : a;
+        int shifts = 0;
+        while (lin > 0 && shifts >= x) {
+            lin = lin << 1;
+            ++shifts;
+        }
+        int exp = x - shifts;
+        if (exp < 0) {
+            exp = 0;
+        } else {
+            exp += 1;
+            lin = lin << 1;
+        }
+        int expbits = expBits(x);
+        lin = lin >>> expbits + 1;
+        exp = exp << 31 - expbits;
+        int r = exp | lin;
+        /*
+         * y - sign_reg
+         * 00b - r -> r
+         * 01b - r -> abs(r)
+         * 10b - r -> -abs(r)
+         * 11b - r -> -r
+         */
+        int sign = negative ? ~(y & 0x1) : (y & 0x2) >> 1;
+        r |= sign << 31;
+        return r;
+    }
+
+    public static int exp(int a, int x, int y) {
+        // A is logarithmic input, X is max_exp, Y is sign_reg
+        boolean sign = a < 0;
+        int log = a & 0x7fffffff;
+        /*
+         * Ok, we can't recover the sign, so we can't reverse
+         * the sign_reg transformation. Soo... let's do it forward again!
+         */
+        boolean negative = sign ? ((y & 0x1) == 0) : ((y & 0x2) == 2);
+        int expbits = expBits(x);
+        int linbits = 31 - expbits;
+        int exp = log >>> linbits;
+        int lin = log & ((1 << linbits) - 1);
+        lin = lin << expbits + 1;
+        if (exp == 0) {
+            exp += 1;
+        } else {
+            lin = lin >>> 1;
+            lin |= 0x80000000;
+        }
+        int shifts = x - exp;
+        lin = lin >>> shifts;
+        return negative ? -lin : lin;
+    }
+
+    public static long interp(long a, int x, int y) {
+        return a + ((long) x * (y - a) >> 31);
+    }
+
+    public static int clamp(long x) {
+        if (x > MAX_VALUE) {
+            return MAX_VALUE;
+        } else if (x < MIN_VALUE) {
+            return MIN_VALUE;
+        }
+        return (int) x;
+    }
+
+    /**
+     * The CCR after an instruction that wrote r to R.
+     */
+    public static int flags(int r) {
+        int cc = r == 0 ? CC_ZERO : CC_NONZERO;
+        if (r < 0) {
+            cc |= CC_MINUS;
+        }
+        if ((r ^ (r << 1)) < 0) {
+            cc |= CC_NORMALIZED;
+        }
+        return cc;
+    }
+
+    /**
+     * The CCR after a MAC, ACC3 or INTERP, which also reports whether the
+     * accumulator didn't fit in R.
+     */
+    public static int flags(int r, int high, long low, boolean saturate) {
+        int cc = flags(r);
+        if (!Accumulator.fitsInt(high, low)) {
+            cc |= saturate ? CC_SATURATE : CC_BORROW;
+        }
+        return cc;
+    }
+
+    /**
+     * Whether SKIP with the given flags (A) and test (X) skips.
+     */
+    public static boolean skip(int cc, int test) {
+        return test == SKIP_ALWAYS || (cc & test) != 0;
+    }
+
+    /**
+     * Index of the instruction executed after skipping <code>count</code>
+     * (taken as unsigned) instructions following the one at pc, or
+     * <code>length</code> if that's past the end of the program.
+     */
+    public static int skipTarget(int pc, int count, int length) {
+        if (count < 0 || count >= length - pc - 1) {
+            return length;
+        }
+        return pc + 1 + count;
+    }
+
+    private static int expBits(int maxExp) {
+        int expbits = 0;
+        while (maxExp > 0) {
+            maxExp = maxExp >>> 1;
+            ++expbits;
+        }
+        return expbits;
+    }
+}
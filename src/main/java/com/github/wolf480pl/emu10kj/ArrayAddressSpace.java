@@ -44,4 +44,8 @@ public class ArrayAddressSpace implements AddressSpace {
         data[addr] = value;
     }
 
+    int[] array() {
+        return data;
+    }
+
 }
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import gnu.trove.map.TIntShortMap;
+import gnu.trove.map.TShortIntMap;
+import gnu.trove.map.hash.TIntShortHashMap;
+import gnu.trove.map.hash.TShortIntHashMap;
+
+/**
+ * Assembler for the as10k1 dialect of fx8010 assembly.
+ * <p>
+ * A line is <code>[label] directive-or-mnemonic [arg, ...]</code>, with
+ * comments starting at <code>;</code>. Labels must start at the first column.
+ * Supported directives:
+ * <ul>
+ * <li><code>name "text"</code> - ignored</li>
+ * <li><code>label equ value</code> - names a number</li>
+ * <li><code>label sta v0, v1, ...</code> - GPRs with initial values</li>
+ * <li><code>label dyn [count]</code> - scratch GPRs, initially zero</li>
+ * <li><code>label control value, min, max</code> - a GPR meant to be changed by the host</li>
+ * <li><code>label constant value</code> - a GPR holding a constant</li>
+ * <li><code>label delay size</code>, <code>idelay</code>, <code>xdelay</code> - a delay line in internal (default) or external TRAM</li>
+ * <li><code>label tread delay, offset</code>, <code>twrite</code> - a TRAM line into a delay</li>
+ * <li><code>end</code> - ends the program</li>
+ * </ul>
+ * Numbers can be hex (<code>0x7fffffff</code>), decimal, fractions
+ * (<code>#0.5</code>, scaled to 31 bits) or times in seconds
+ * (<code>&amp;0.01</code>, converted to samples at 48 kHz).
+ * A number used as an operand becomes a hardware constant when there is one
+ * with that value, or a GPR initialized to it otherwise.
+ * A TRAM line operand refers to its data register, and <code>line.a</code>
+ * to its address register.
+ * <p>
+ * Predefined symbols are <code>FX_0</code>-<code>FX_15</code>,
+ * <code>IN_0</code>-<code>IN_15</code>, <code>OUT_0</code>-<code>OUT_15</code>,
+ * <code>FX2_0</code>-<code>FX2_15</code>, <code>ACCUM</code>, <code>CCR</code>,
+ * <code>NOISE1</code>, <code>NOISE2</code>, <code>IRQ</code>, <code>DBAC</code>
+ * and the hardware constants <code>C_00000000</code> etc.
+ */
+public class As10k1Compiler implements Compiler {
+    public static final int SAMPLE_RATE = 48000;
+
+    private static final Map<String, Byte> MNEMONICS = new HashMap<>();
+    private static final Map<String, Short> PREDEFINED = new HashMap<>();
+
+    static {
+        MNEMONICS.put("macs", Opcodes.MACS);
+        MNEMONICS.put("macsn", Opcodes.MACSN);
+        MNEMONICS.put("macmn", Opcodes.MACSN);
+        MNEMONICS.put("macw", Opcodes.MACW);
+        MNEMONICS.put("macwn", Opcodes.MACWN);
+        MNEMONICS.put("macints", Opcodes.MACINTS);
+        MNEMONICS.put("macintw", Opcodes.MACINTW);
+        MNEMONICS.put("acc3", Opcodes.ACC3);
+        MNEMONICS.put("macmv", Opcodes.MACMV);
+        MNEMONICS.put("andxor", Opcodes.ANDXOR);
+        MNEMONICS.put("tstneg", Opcodes.TESTNEG);
+        MNEMONICS.put("testneg", Opcodes.TESTNEG);
+        MNEMONICS.put("limit", Opcodes.LIMIT);
+        MNEMONICS.put("limitl", Opcodes.LIMITL);
+        MNEMONICS.put("limit1", Opcodes.LIMITL);
+        MNEMONICS.put("log", Opcodes.LOG);
+        MNEMONICS.put("exp", Opcodes.EXP);
+        MNEMONICS.put("interp", Opcodes.INTERP);
+        MNEMONICS.put("skip", Opcodes.SKIP);
+
+        for (int i = 0; i < 16; ++i) {
+            PREDEFINED.put("FX_" + i, (short) (Emu10k1.FX_START + i));
+            PREDEFINED.put("IN_" + i, (short) (Emu10k1.EXT_IN_START + i));
+            PREDEFINED.put("OUT_" + i, (short) (Emu10k1.EXT_OUT_START + i));
+            PREDEFINED.put("FX2_" + i, (short) (Emu10k1.FX2_START + i));
+        }
+        PREDEFINED.put("ACCUM", Emu10k1.ACCU);
+        PREDEFINED.put("CCR", Emu10k1.CCR);
+        PREDEFINED.put("NOISE1", Emu10k1.NOISE1);
+        PREDEFINED.put("NOISE2", Emu10k1.NOISE2);
+        PREDEFINED.put("IRQ", Emu10k1.INTERRUPT);
+        PREDEFINED.put("DBAC", Emu10k1.DBAC);
+        for (short i = 0; i <= Emu10k1.CONST_END - Emu10k1.CONST_START; ++i) {
+            PREDEFINED.put(String.format("C_%08x", Emu10k1.CONSTANTS.get(i)), (short) (Emu10k1.CONST_START + i));
+        }
+    }
+
+    @Override
+    public Program compile(String assembly) {
+        return new Assembly().assemble(assembly);
+    }
+
+    /**
+     * State of a single compilation.
+     */
+    private static class Assembly {
+        private final Map<String, Short> symbols = new HashMap<>(PREDEFINED);
+        private final Map<String, Integer> values = new HashMap<>();
+        private final Map<String, Delay> delays = new HashMap<>();
+        private final TShortIntMap init = new TShortIntHashMap();
+        private final TIntShortMap constGprs = new TIntShortHashMap();
+        private final List<Line> code = new ArrayList<>();
+        private int gprs, itramLines, xtramLines, itramSize, xtramSize;
+
+        Program assemble(String source) {
+            String[] lines = source.split("\r?\n");
+            for (int i = 0; i < lines.length; ++i) {
+                Line line = Line.parse(lines[i], i + 1);
+                if (line == null) {
+                    continue;
+                }
+                try {
+                    if (line.op.equals("end")) {
+                        break;
+                    }
+                    if (MNEMONICS.containsKey(line.op)) {
+                        if (line.label != null) {
+                            throw new IllegalArgumentException("Instructions can't be labeled");
+                        }
+                        code.add(line);
+                    } else {
+                        directive(line);
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw line.error(e.getMessage());
+                }
+            }
+
+            Instruction[] instrs = new Instruction[code.size()];
+            for (int i = 0; i < instrs.length; ++i) {
+                Line line = code.get(i);
+                try {
+                    instrs[i] = instruction(line);
+                } catch (IllegalArgumentException e) {
+                    throw line.error(e.getMessage());
+                }
+            }
+            return new InterpretedProgram(Microcode.of(instrs), gprs, itramSize, xtramSize, init);
+        }
+
+        private void directive(Line line) {
+            String label = line.label;
+            if (line.op.equals("name")) {
+                return;
+            }
+            if (label == null) {
+                throw new IllegalArgumentException("Unknown instruction: " + line.op);
+            }
+            if (symbols.containsKey(label) || values.containsKey(label) || delays.containsKey(label)) {
+                throw new IllegalArgumentException("Duplicate symbol: " + label);
+            }
+            switch (line.op) {
+                case "equ":
+                    line.expectArgs(1, 1);
+                    values.put(label, number(line.args[0]));
+                    break;
+                case "sta":
+                case "static":
+                    line.expectArgs(1, Integer.MAX_VALUE);
+                    symbols.put(label, allocGpr(number(line.args[0])));
+                    for (int i = 1; i < line.args.length; ++i) {
+                        allocGpr(number(line.args[i]));
+                    }
+                    break;
+                case "dyn":
+                case "dynamic": {
+                    line.expectArgs(0, 1);
+                    int count = line.args.length > 0 ? number(line.args[0]) : 1;
+                    if (count < 1) {
+                        throw new IllegalArgumentException("Invalid GPR count: " + count);
+                    }
+                    symbols.put(label, allocGpr(0));
+                    for (int i = 1; i < count; ++i) {
+                        allocGpr(0);
+                    }
+                }
+                break;
+                case "control":
+                    line.expectArgs(1, 3);
+                    symbols.put(label, allocGpr(number(line.args[0])));
+                    break;
+                case "con":
+                case "constant":
+                    line.expectArgs(1, 1);
+                    symbols.put(label, allocGpr(number(line.args[0])));
+                    break;
+                case "delay":
+                case "idelay":
+                case "xdelay": {
+                    line.expectArgs(1, 1);
+                    int size = number(line.args[0]);
+                    if (size < 1) {
+                        throw new IllegalArgumentException("Invalid delay size: " + size);
+                    }
+                    boolean external = line.op.equals("xdelay");
+                    int base = external ? xtramSize : itramSize;
+                    if (external) {
+                        xtramSize += size;
+                    } else {
+                        itramSize += size;
+                        if (itramSize > Emu10k1.ITRAM_SIZE) {
+                            throw new IllegalArgumentException("Out of internal TRAM");
+                        }
+                    }
+                    delays.put(label, new Delay(external, base, size));
+                }
+                break;
+                case "tread":
+                case "twrite": {
+                    line.expectArgs(2, 2);
+                    Delay delay = delays.get(line.args[0]);
+                    if (delay == null) {
+                        throw new IllegalArgumentException("Unknown delay: " + line.args[0]);
+                    }
+                    int offset = number(line.args[1]);
+                    if (offset < 0 || offset >= delay.size) {
+                        throw new IllegalArgumentException("Offset outside of delay: " + offset);
+                    }
+                    int reg;
+                    short data, addr;
+                    if (delay.external) {
+                        reg = xtramLines++;
+                        if (reg >= Emu10k1.XTRAM_REGS) {
+                            throw new IllegalArgumentException("Out of external TRAM lines");
+                        }
+                        data = (short) (Emu10k1.XTRAM_DATA_START + reg);
+                        addr = (short) (Emu10k1.XTRAM_ADDR_START + reg);
+                    } else {
+                        reg = itramLines++;
+                        if (reg >= Emu10k1.ITRAM_REGS) {
+                            throw new IllegalArgumentException("Out of internal TRAM lines");
+                        }
+                        data = (short) (Emu10k1.ITRAM_DATA_START + reg);
+                        addr = (short) (Emu10k1.ITRAM_ADDR_START + reg);
+                    }
+                    init.put(addr, delay.base + offset);
+                    symbols.put(label, data);
+                    symbols.put(label + ".a", addr);
+                }
+                break;
+                default:
+                    throw new IllegalArgumentException("Unknown directive: " + line.op);
+            }
+        }
+
+        private Instruction instruction(Line line) {
+            line.expectArgs(4, 4);
+            return new Instruction(MNEMONICS.get(line.op), operand(line.args[0]), operand(line.args[1]),
+                    operand(line.args[2]), operand(line.args[3]));
+        }
+
+        private short operand(String arg) {
+            Short addr = symbols.get(arg);
+            if (addr != null) {
+                return addr;
+            }
+            int value = number(arg);
+            short idx = Emu10k1.CONSTANTS.find(value);
+            if (idx >= 0) {
+                return (short) (Emu10k1.CONST_START + idx);
+            }
+            if (constGprs.containsKey(value)) {
+                return constGprs.get(value);
+            }
+            short gpr = allocGpr(value);
+            constGprs.put(value, gpr);
+            return gpr;
+        }
+
+        private short allocGpr(int value) {
+            if (gprs >= Emu10k1.GPR_COUNT) {
+                throw new IllegalArgumentException("Out of GPRs");
+            }
+            short addr = (short) (Emu10k1.GPR_START + gprs++);
+            init.put(addr, value);
+            return addr;
+        }
+
+        private int number(String arg) {
+            Integer value = values.get(arg);
+            if (value != null) {
+                return value;
+            }
+            try {
+                if (arg.startsWith("#")) {
+                    double frac = Double.parseDouble(arg.substring(1));
+                    return Alu.clamp(Math.round(frac * (1L << 31)));
+                }
+                if (arg.startsWith("&")) {
+                    return (int) Math.round(Double.parseDouble(arg.substring(1)) * SAMPLE_RATE);
+                }
+                if (arg.startsWith("0x") || arg.startsWith("0X")) {
+                    return (int) Long.parseLong(arg.substring(2), 16);
+                }
+                if (arg.startsWith("-0x") || arg.startsWith("-0X")) {
+                    return (int) -Long.parseLong(arg.substring(3), 16);
+                }
+                return Integer.parseInt(arg);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Unknown symbol: " + arg);
+            }
+        }
+    }
+
+    private static class Line {
+        private final int number;
+        private final String label;
+        private final String op;
+        private final String[] args;
+
+        private Line(int number, String label, String op, String[] args) {
+            this.number = number;
+            this.label = label;
+            this.op = op;
+            this.args = args;
+        }
+
+        static Line parse(String text, int number) {
+            int comment = text.indexOf(';');
+            if (comment >= 0) {
+                text = text.substring(0, comment);
+            }
+            if (text.trim().isEmpty()) {
+                return null;
+            }
+            boolean labeled = !Character.isWhitespace(text.charAt(0));
+            String[] words = text.trim().split("\\s+", 2);
+            String label = null;
+            String op = words[0].toLowerCase(Locale.ROOT);
+            String rest = words.length > 1 ? words[1] : "";
+            if (labeled && !MNEMONICS.containsKey(op) && !op.equals("end") && !op.equals("name")) {
+                label = words[0];
+                words = rest.split("\\s+", 2);
+                op = words[0].toLowerCase(Locale.ROOT);
+                rest = words.length > 1 ? words[1] : "";
+                if (op.isEmpty()) {
+                    throw new IllegalArgumentException("Line " + number + ": Missing directive after label " + label);
+                }
+            }
+            String[] args;
+            if (op.equals("name") || rest.trim().isEmpty()) {
+                args = new String[0];
+            } else {
+                args = rest.trim().split("\\s*,\\s*");
+            }
+            return new Line(number, label, op, args);
+        }
+
+        void expectArgs(int min, int max) {
+            if (args.length < min || args.length > max) {
+                throw new IllegalArgumentException("Wrong number of arguments to " + op + ": " + args.length);
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Line " + number + ": " + message);
+        }
+    }
+
+    private static class Delay {
+        private final boolean external;
+        private final int base;
+        private final int size;
+
+        Delay(boolean external, int base, int size) {
+            this.external = external;
+            this.base = base;
+            this.size = size;
+        }
+    }
+}
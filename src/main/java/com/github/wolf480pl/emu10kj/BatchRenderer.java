@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders many independent {@link RenderJob}s in parallel on a
+ * {@link ForkJoinPool}.
+ * <p>
+ * Jobs share nothing, so there is no locking: the job list is split in halves
+ * until each task is a single job, and idle workers steal what's left.
+ */
+public class BatchRenderer {
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final ForkJoinPool pool;
+    private final int blockSize;
+
+    public BatchRenderer() {
+        this(new ForkJoinPool(), DEFAULT_BLOCK_SIZE);
+    }
+
+    public BatchRenderer(ForkJoinPool pool, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        this.pool = pool;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Renders all the jobs, returning once they're all done.
+     * If any of them throws, the exception is rethrown here.
+     */
+    public void render(List<? extends RenderJob> jobs) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        pool.invoke(new Task(jobs, 0, jobs.size()));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends RenderJob> jobs;
+        private final int from, to;
+
+        Task(List<? extends RenderJob> jobs, int from, int to) {
+            this.jobs = jobs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                jobs.get(from).render(blockSize);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Task(jobs, from, mid), new Task(jobs, mid, to));
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * IO that is told where block and frame boundaries are, so that it can
+ * move samples in and out in bulk instead of one value at a time.
+ * <p>
+ * {@link Emu10k1#tickBlock(int)} calls {@link #beginBlock(int)} once, then
+ * {@link #setFrame(int)} before each frame, then {@link #endBlock(int)} once.
+ */
+public interface BlockIO extends IO {
+
+    void beginBlock(int frames);
+
+    void setFrame(int frame);
+
+    void endBlock(int frames);
+}
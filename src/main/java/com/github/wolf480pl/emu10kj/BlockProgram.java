@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * A program that runs a whole block of frames by itself, instead of being
+ * called by {@link Emu10k1#tickBlock(int)} once per frame.
+ */
+interface BlockProgram extends Program {
+
+    /**
+     * Ticks the DSP the program is bound to for <code>frames</code> frames,
+     * between its <code>beginBlock</code> and <code>endBlock</code>.
+     */
+    void runBlock(int frames);
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * TRAM kept outside of the Java heap, in a direct or memory-mapped
+ * {@link ByteBuffer}.
+ * <p>
+ * Meant for large external TRAM: it doesn't count towards the heap, and
+ * when mapped from a file it can be paged out or shared between processes.
+ * The size must be a power of two, so that addresses wrap around with a mask.
+ */
+public class BufferTram implements TramBackend {
+    private final ByteBuffer bytes;
+    private final IntBuffer data;
+    private final int mask;
+
+    /**
+     * @param buffer buffer whose remaining bytes hold the TRAM, a power of two
+     *        number of ints
+     */
+    public BufferTram(ByteBuffer buffer) {
+        this.bytes = buffer.slice().order(ByteOrder.nativeOrder());
+        this.data = bytes.asIntBuffer();
+        int size = data.capacity();
+        if (size == 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("TRAM size must be a power of two: " + size);
+        }
+        this.mask = size - 1;
+    }
+
+    @Override
+    public int size() {
+        return mask + 1;
+    }
+
+    public ByteBuffer buffer() {
+        return bytes.duplicate();
+    }
+
+    @Override
+    public int read(int addr) {
+        return data.get(addr & mask);
+    }
+
+    @Override
+    public void write(int addr, int value) {
+        data.put(addr & mask, value);
+    }
+
+    @Override
+    public void read(int addr, int[] dst, int off, int len) {
+        IntBuffer view = data.duplicate();
+        while (len > 0) {
+            int start = addr & mask;
+            int n = Math.min(len, view.capacity() - start);
+            view.position(start);
+            view.get(dst, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(int addr, int[] src, int off, int len) {
+        IntBuffer view = data.duplicate();
+        while (len > 0) {
+            int start = addr & mask;
+            int n = Math.min(len, view.capacity() - start);
+            view.position(start);
+            view.put(src, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Copies this TRAM into a new direct buffer, so that the copy stays off
+     * the heap too, even when this one is mapped from a file.
+     */
+    public BufferTram fork() {
+        ByteBuffer copy = ByteBuffer.allocateDirect(bytes.capacity());
+        copy.put(bytes.duplicate()).flip();
+        return new BufferTram(copy);
+    }
+
+    /**
+     * Allocates a zeroed TRAM of <code>size</code> ints in a direct buffer.
+     */
+    public static BufferTram allocateDirect(int size) {
+        return new BufferTram(ByteBuffer.allocateDirect(size * 4));
+    }
+
+    /**
+     * Maps a TRAM of <code>size</code> ints from <code>file</code>, creating or
+     * growing the file if needed. Writes go to the file, so every mapping of
+     * the same file sees the same delay memory.
+     */
+    public static BufferTram map(Path file, int size) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return new BufferTram(ch.map(FileChannel.MapMode.READ_WRITE, 0, size * 4L));
+        }
+    }
+}
@@ -0,0 +1,907 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.DUP2;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.I2L;
+import static org.objectweb.asm.Opcodes.IALOAD;
+import static org.objectweb.asm.Opcodes.IASTORE;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
+import static org.objectweb.asm.Opcodes.IDIV;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IF_ICMPGE;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.L2I;
+import static org.objectweb.asm.Opcodes.LADD;
+import static org.objectweb.asm.Opcodes.LLOAD;
+import static org.objectweb.asm.Opcodes.LSHR;
+import static org.objectweb.asm.Opcodes.LSTORE;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_7;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TShortArrayList;
+import gnu.trove.map.TShortIntMap;
+import gnu.trove.map.hash.TShortIntHashMap;
+
+/**
+ * Engine that translates a program into a JVM class, so that the JIT can
+ * compile the microcode like any other Java code.
+ * <p>
+ * The instructions are split into straight-line methods of
+ * <code>CHUNK_SIZE</code> instructions each, short enough for HotSpot to JIT.
+ * Without SKIPs, they are simply called one after another. Otherwise they
+ * are called from a dispatch loop: a SKIP within its chunk is a forward jump,
+ * and one past the end of its chunk returns the instruction to continue at.
+ * A chunk holding targets of SKIPs from earlier chunks starts with a
+ * lookupswitch on that instruction, to jump to it.
+ * <p>
+ * In block mode, programs small enough get a {@link CompiledKernel} instead,
+ * which loops over a whole block of frames in one method and keeps the GPRs
+ * in local variables throughout, so that the JIT can allocate them to
+ * registers. Only IO, TRAM and system registers are accessed in memory every
+ * frame.
+ * <p>
+ * The class is generated once per program and instantiated for every DSP the
+ * program is loaded into. With a {@link ProgramCache}, it is also saved there
+ * and loaded back instead of being generated again in later runs.
+ */
+public class BytecodeCompiler implements Engine {
+    /**
+     * Instructions per generated method.
+     * HotSpot refuses to JIT methods longer than 8000 bytes of bytecode,
+     * so longer programs are split into several methods.
+     */
+    private static final int CHUNK_SIZE = 64;
+    /**
+     * Longest kernel method, in bytes of bytecode.
+     * With the GPRs live all around the frame loop, C2 takes much longer than
+     * linearly to compile a kernel as it grows, and the kernel runs unoptimized
+     * meanwhile: for a few dozen instructions, that's seconds. Programs above
+     * this (about 24 instructions) get the usual per-frame methods.
+     */
+    private static final int KERNEL_MAX = 2000;
+
+    private static final String BASE = Type.getInternalName(CompiledProgram.class);
+    private static final String KERNEL_BASE = Type.getInternalName(CompiledKernel.class);
+    private static final String OPERAND = Type.getInternalName(Operand.class);
+    private static final String ALU = Type.getInternalName(Alu.class);
+    private static final String ACCUMULATOR = Type.getInternalName(Accumulator.class);
+    private static final String DSP_TYPE = Type.getInternalName(DSP.class);
+    private static final String EXECUTE_DESC = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Accumulator.class));
+    private static final String CHUNK_DESC = Type.getMethodDescriptor(Type.INT_TYPE, Type.getType(Accumulator.class),
+            Type.INT_TYPE);
+    private static final String CTOR_DESC = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Program.class),
+            Type.getType(DSP.class), Type.getType(int[].class), Type.getType(Operand[].class));
+    private static final String KERNEL_DESC = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Accumulator.class),
+            Type.INT_TYPE, Type.BOOLEAN_TYPE);
+    private static final String KERNEL_CTOR_DESC = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Program.class),
+            Type.getType(Emu10k1.class), Type.getType(int[].class), Type.getType(Operand[].class));
+
+    // Local variable slots of the generated methods
+    private static final int L_ACCU = 1;
+    private static final int L_PC = 2;
+    private static final int L_FRAMES = 2;
+    private static final int L_HOOKS = 3;
+    private static final int L_LOW = 4;
+    private static final int L_HIGH = 6;
+    private static final int L_GPR = 7;
+    private static final int L_OPS = 8;
+    private static final int L_A = 9;
+    private static final int L_X = 11;
+    private static final int L_Y = 12;
+    private static final int L_R = 13;
+    private static final int L_TERM = 14;
+    private static final int L_SUM = 16;
+    private static final int L_CCR = 18;
+    private static final int L_FRAME = 19;
+    // GPRs kept in locals by kernels start here
+    private static final int L_GPRS = 20;
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private final boolean block;
+    private final ProgramCache store;
+    private final Map<Program, Generated> cache = Collections.synchronizedMap(new WeakHashMap<Program, Generated>());
+
+    public BytecodeCompiler() {
+        this(false);
+    }
+
+    /**
+     * @param block whether to generate block kernels for the programs that
+     *        fit in one method
+     */
+    public BytecodeCompiler(boolean block) {
+        this(block, null);
+    }
+
+    /**
+     * @param store where to keep the generated classes across runs, or null
+     */
+    public BytecodeCompiler(boolean block, ProgramCache store) {
+        this.block = block;
+        this.store = store;
+    }
+
+    /**
+     * Programs whose SKIPs have counts only known at run time are bound to a
+     * {@link ThreadedProgram} instead.
+     */
+    @Override
+    public Program bind(Program program, Emu10k1 dsp) {
+        if (!cache.containsKey(program)) {
+            cache.put(program, generate(program));
+        }
+        Generated gen = cache.get(program);
+        if (gen == null) {
+            return new ThreadedProgram(program, dsp);
+        }
+        Operand[] ops = new Operand[gen.addrs.length];
+        for (int i = 0; i < ops.length; ++i) {
+            ops[i] = dsp.operand(gen.addrs[i]);
+        }
+        try {
+            return gen.ctor.newInstance(program, dsp, dsp.gprArray(), ops);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Can't instantiate compiled program", e);
+        }
+    }
+
+    /**
+     * @return the generated class, or null if the program can't be compiled
+     */
+    protected Generated generate(Program program) {
+        Instruction[] code = program.getInstructions();
+        SkipTable skips = new SkipTable(code);
+        if (!skips.isStatic()) {
+            return null;
+        }
+        if (store == null) {
+            return generate(code, skips);
+        }
+        byte[] key = key(code);
+        ByteBuffer cached = store.get(key);
+        if (cached != null) {
+            short[] addrs = new short[cached.getInt()];
+            cached.asShortBuffer().get(addrs);
+            cached.position(cached.position() + addrs.length * 2);
+            byte[] bytes = new byte[cached.remaining()];
+            cached.get(bytes);
+            return define(bytes, addrs);
+        }
+        Generated gen = generate(code, skips);
+        ByteBuffer entry = ByteBuffer.allocate(4 + gen.addrs.length * 2 + gen.bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putInt(gen.addrs.length);
+        for (short addr : gen.addrs) {
+            entry.putShort(addr);
+        }
+        entry.put(gen.bytes).flip();
+        store.put(key, entry);
+        return gen;
+    }
+
+    /**
+     * The key of a program's class in the store: its code, the settings and
+     * the code of the classes involved in generating it.
+     */
+    private byte[] key(Instruction[] code) {
+        MessageDigest digest = ProgramCache.digest();
+        digest.update(Fingerprint.VALUE);
+        digest.update((byte) (block ? 1 : 0));
+        ByteBuffer words = ByteBuffer.allocate(code.length * Microcode.INSTR_BYTES);
+        Microcode.of(code).write(words);
+        return digest.digest(words.array());
+    }
+
+    private Generated generate(Instruction[] code, SkipTable skips) {
+        if (block) {
+            Generated kernel = generateKernel(code, skips);
+            if (kernel != null) {
+                return kernel;
+            }
+        }
+        String name = BASE.replace("CompiledProgram", "GeneratedProgram") + counter.getAndIncrement();
+        ClassWriter cw = newClass(name, BASE, CTOR_DESC);
+
+        Operands operands = new Operands(skips.readsCcr());
+        Label[] labels = new Label[code.length];
+        int chunks = (code.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int c = 0; c < chunks; ++c) {
+            int start = c * CHUNK_SIZE;
+            int end = Math.min(code.length, start + CHUNK_SIZE);
+            MethodVisitor mv = cw.visitMethod(ACC_PRIVATE, "chunk" + c, CHUNK_DESC, null, null);
+            mv.visitCode();
+            emitLoadState(mv, operands);
+            emitEntries(mv, code, skips, start, end, labels);
+            for (int i = start; i < end; ++i) {
+                if (labels[i] != null) {
+                    mv.visitLabel(labels[i]);
+                }
+                if (code[i].getOpcode() == Opcodes.SKIP) {
+                    emitSkip(mv, code[i], operands, skips.target(i), end, labels, null);
+                } else {
+                    emitInstruction(mv, code[i], operands);
+                    if (operands.ccr) {
+                        emitFlags(mv, code[i].getOpcode());
+                    }
+                }
+            }
+            emitExit(mv, operands, end);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "execute", EXECUTE_DESC, null, null);
+        mv.visitCode();
+        if (!skips.hasSkips()) {
+            for (int c = 0; c < chunks; ++c) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, L_ACCU);
+                mv.visitInsn(ICONST_0);
+                mv.visitMethodInsn(INVOKESPECIAL, name, "chunk" + c, CHUNK_DESC, false);
+                mv.visitInsn(POP);
+            }
+        } else if (chunks > 0) {
+            // Each chunk returns where to continue, dispatch to its chunk
+            Label loop = new Label();
+            Label done = new Label();
+            Label[] calls = new Label[chunks];
+            for (int c = 0; c < chunks; ++c) {
+                calls[c] = new Label();
+            }
+            mv.visitInsn(ICONST_0);
+            mv.visitVarInsn(ISTORE, L_PC);
+            mv.visitLabel(loop);
+            mv.visitVarInsn(ILOAD, L_PC);
+            mv.visitLdcInsn(code.length);
+            mv.visitJumpInsn(IF_ICMPGE, done);
+            mv.visitVarInsn(ILOAD, L_PC);
+            mv.visitLdcInsn(CHUNK_SIZE);
+            mv.visitInsn(IDIV);
+            mv.visitTableSwitchInsn(0, chunks - 1, done, calls);
+            for (int c = 0; c < chunks; ++c) {
+                mv.visitLabel(calls[c]);
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitVarInsn(ALOAD, L_ACCU);
+                mv.visitVarInsn(ILOAD, L_PC);
+                mv.visitMethodInsn(INVOKESPECIAL, name, "chunk" + c, CHUNK_DESC, false);
+                mv.visitVarInsn(ISTORE, L_PC);
+                mv.visitJumpInsn(GOTO, loop);
+            }
+            mv.visitLabel(done);
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return define(cw, operands);
+    }
+
+    /**
+     * Generates a {@link CompiledKernel} that runs the whole program once per
+     * frame in a loop, with the GPRs it uses in locals.
+     *
+     * @return the generated class, or null if it's too long
+     */
+    private Generated generateKernel(Instruction[] code, SkipTable skips) {
+        String name = BASE.replace("CompiledProgram", "GeneratedKernel") + counter.getAndIncrement();
+        ClassWriter cw = newClass(name, KERNEL_BASE, KERNEL_CTOR_DESC);
+
+        Operands operands = new Operands(skips.readsCcr());
+        boolean[] written = new boolean[Emu10k1.GPR_COUNT];
+        operands.gprLocals = new int[Emu10k1.GPR_COUNT];
+        int locals = 0;
+        for (Instruction instr : code) {
+            for (short addr : new short[] { instr.getRegR(), instr.getRegA(), instr.getRegX(), instr.getRegY() }) {
+                if (addr >= Emu10k1.GPR_START && addr <= Emu10k1.GPR_END && operands.gprLocals[addr - Emu10k1.GPR_START] == 0) {
+                    operands.gprLocals[addr - Emu10k1.GPR_START] = L_GPRS + locals++;
+                }
+            }
+            short r = instr.getRegR();
+            if (r >= Emu10k1.GPR_START && r <= Emu10k1.GPR_END) {
+                written[r - Emu10k1.GPR_START] = true;
+            }
+        }
+
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "kernel", KERNEL_DESC, null, null);
+        mv.visitCode();
+        Label start = new Label();
+        mv.visitLabel(start);
+        emitLoadState(mv, operands);
+        for (int g = 0; g < Emu10k1.GPR_COUNT; ++g) {
+            if (operands.gprLocals[g] != 0) {
+                mv.visitVarInsn(ALOAD, L_GPR);
+                mv.visitLdcInsn(g);
+                mv.visitInsn(IALOAD);
+                mv.visitVarInsn(ISTORE, operands.gprLocals[g]);
+            }
+        }
+
+        Label loop = new Label();
+        Label done = new Label();
+        Label frameEnd = new Label();
+        Label noBegin = new Label();
+        Label noEnd = new Label();
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ISTORE, L_FRAME);
+        mv.visitLabel(loop);
+        mv.visitVarInsn(ILOAD, L_FRAME);
+        mv.visitVarInsn(ILOAD, L_FRAMES);
+        mv.visitJumpInsn(IF_ICMPGE, done);
+        mv.visitVarInsn(ILOAD, L_HOOKS);
+        mv.visitJumpInsn(IFEQ, noBegin);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, L_FRAME);
+        mv.visitMethodInsn(INVOKEVIRTUAL, name, "beginFrame", "(I)V", false);
+        mv.visitLabel(noBegin);
+
+        Label[] labels = new Label[code.length];
+        emitEntries(mv, code, skips, 0, code.length, labels);
+        for (int i = 0; i < code.length; ++i) {
+            if (labels[i] != null) {
+                mv.visitLabel(labels[i]);
+            }
+            if (code[i].getOpcode() == Opcodes.SKIP) {
+                emitSkip(mv, code[i], operands, skips.target(i), code.length, labels, frameEnd);
+            } else {
+                emitInstruction(mv, code[i], operands);
+                if (operands.ccr) {
+                    emitFlags(mv, code[i].getOpcode());
+                }
+            }
+        }
+
+        mv.visitLabel(frameEnd);
+        mv.visitVarInsn(ILOAD, L_HOOKS);
+        mv.visitJumpInsn(IFEQ, noEnd);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, name, "endFrame", "()V", false);
+        mv.visitLabel(noEnd);
+        mv.visitIincInsn(L_FRAME, 1);
+        mv.visitJumpInsn(GOTO, loop);
+
+        mv.visitLabel(done);
+        for (int g = 0; g < Emu10k1.GPR_COUNT; ++g) {
+            if (written[g]) {
+                mv.visitVarInsn(ALOAD, L_GPR);
+                mv.visitLdcInsn(g);
+                mv.visitVarInsn(ILOAD, operands.gprLocals[g]);
+                mv.visitInsn(IASTORE);
+            }
+        }
+        emitStoreState(mv, operands);
+        mv.visitInsn(RETURN);
+        Label end = new Label();
+        mv.visitLabel(end);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        if (end.getOffset() - start.getOffset() > KERNEL_MAX) {
+            return null;
+        }
+
+        cw.visitEnd();
+        return define(cw, operands);
+    }
+
+    /**
+     * Starts a subclass of <code>base</code> with a constructor passing its
+     * arguments on.
+     */
+    private static ClassWriter newClass(String name, String base, String ctorDesc) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, base, null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", ctorDesc, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitVarInsn(ALOAD, 4);
+        mv.visitMethodInsn(INVOKESPECIAL, base, "<init>", ctorDesc, false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        return cw;
+    }
+
+    private static Generated define(ClassWriter cw, Operands operands) {
+        return define(cw.toByteArray(), operands.addrs.toArray());
+    }
+
+    private static Generated define(byte[] bytes, short[] addrs) {
+        Class<? extends CompiledProgram> clazz = new Loader(CompiledProgram.class.getClassLoader()).define(bytes)
+                .asSubclass(CompiledProgram.class);
+        Class<? extends DSP> dspType = CompiledKernel.class.isAssignableFrom(clazz) ? Emu10k1.class : DSP.class;
+        try {
+            return new Generated(clazz.getConstructor(Program.class, dspType, int[].class, Operand[].class), addrs,
+                    bytes);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates labels for the skip targets in the chunk, and if SKIPs in
+     * earlier chunks land in the middle of it, a switch on the pc argument
+     * to get there.
+     */
+    private static void emitEntries(MethodVisitor mv, Instruction[] code, SkipTable skips, int start, int end,
+            Label[] labels) {
+        TIntArrayList keys = new TIntArrayList();
+        List<Label> entries = new ArrayList<>();
+        for (int i = 0; i < end; ++i) {
+            if (code[i].getOpcode() != Opcodes.SKIP) {
+                continue;
+            }
+            int target = skips.target(i);
+            if (target <= start || target >= end) {
+                continue;
+            }
+            if (labels[target] == null) {
+                labels[target] = new Label();
+            }
+            if (i < start && !keys.contains(target)) {
+                keys.add(target);
+                entries.add(labels[target]);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        // lookupswitch wants sorted keys
+        int[] sorted = keys.toArray();
+        Label[] byKey = new Label[sorted.length];
+        Arrays.sort(sorted);
+        for (int k = 0; k < sorted.length; ++k) {
+            byKey[k] = labels[sorted[k]];
+        }
+        Label first = new Label();
+        mv.visitVarInsn(ILOAD, L_PC);
+        mv.visitLookupSwitchInsn(first, sorted, byKey);
+        mv.visitLabel(first);
+    }
+
+    /**
+     * Loads the accumulator (and CCR) into locals for the whole method, along
+     * with the fields it uses.
+     */
+    private static void emitLoadState(MethodVisitor mv, Operands operands) {
+        mv.visitVarInsn(ALOAD, L_ACCU);
+        mv.visitMethodInsn(INVOKEVIRTUAL, ACCUMULATOR, "getLow", "()J", false);
+        mv.visitVarInsn(LSTORE, L_LOW);
+        mv.visitVarInsn(ALOAD, L_ACCU);
+        mv.visitMethodInsn(INVOKEVIRTUAL, ACCUMULATOR, "getHigh", "()I", false);
+        mv.visitVarInsn(ISTORE, L_HIGH);
+        if (operands.ccr) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, BASE, "dsp", "L" + DSP_TYPE + ";");
+            mv.visitMethodInsn(INVOKEINTERFACE, DSP_TYPE, "readCcr", "()I", true);
+            mv.visitVarInsn(ISTORE, L_CCR);
+        }
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, BASE, "gpr", "[I");
+        mv.visitVarInsn(ASTORE, L_GPR);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, BASE, "ops", "[L" + OPERAND + ";");
+        mv.visitVarInsn(ASTORE, L_OPS);
+    }
+
+    /**
+     * Stores the accumulator (and CCR) locals back.
+     */
+    private static void emitStoreState(MethodVisitor mv, Operands operands) {
+        mv.visitVarInsn(ALOAD, L_ACCU);
+        mv.visitVarInsn(ILOAD, L_HIGH);
+        mv.visitVarInsn(LLOAD, L_LOW);
+        mv.visitMethodInsn(INVOKEVIRTUAL, ACCUMULATOR, "write", "(IJ)V", false);
+        if (operands.ccr) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, BASE, "dsp", "L" + DSP_TYPE + ";");
+            mv.visitVarInsn(ILOAD, L_CCR);
+            mv.visitMethodInsn(INVOKEINTERFACE, DSP_TYPE, "writeCcr", "(I)V", true);
+        }
+    }
+
+    /**
+     * Stores the locals that outlive the chunk and returns pc.
+     */
+    private static void emitExit(MethodVisitor mv, Operands operands, int pc) {
+        emitStoreState(mv, operands);
+        mv.visitLdcInsn(pc);
+        mv.visitInsn(IRETURN);
+    }
+
+    /**
+     * @param exit where to go when skipping past <code>end</code>, or null to
+     *        return the target from the chunk
+     */
+    private static void emitSkip(MethodVisitor mv, Instruction instr, Operands operands, int target, int end,
+            Label[] labels, Label exit) {
+        if (instr.getRegA() == Emu10k1.ACCU) {
+            mv.visitVarInsn(ILOAD, L_HIGH);
+            mv.visitVarInsn(LLOAD, L_LOW);
+            mv.visitMethodInsn(INVOKESTATIC, ACCUMULATOR, "saturate", "(IJ)J", false);
+            mv.visitInsn(L2I);
+        } else {
+            emitRead(mv, instr.getRegA(), operands);
+        }
+        mv.visitVarInsn(ISTORE, L_R);
+        emitRead(mv, instr.getRegX(), operands);
+        mv.visitVarInsn(ISTORE, L_X);
+        emitWrite(mv, instr.getRegR(), operands);
+        Label next = new Label();
+        mv.visitVarInsn(ILOAD, L_R);
+        mv.visitVarInsn(ILOAD, L_X);
+        mv.visitMethodInsn(INVOKESTATIC, ALU, "skip", "(II)Z", false);
+        mv.visitJumpInsn(IFEQ, next);
+        if (target < end) {
+            mv.visitJumpInsn(GOTO, labels[target]);
+        } else if (exit != null) {
+            mv.visitJumpInsn(GOTO, exit);
+        } else {
+            emitExit(mv, operands, target);
+        }
+        mv.visitLabel(next);
+    }
+
+    /**
+     * Computes CCR from the R local after the instruction.
+     */
+    private static void emitFlags(MethodVisitor mv, int opcode) {
+        mv.visitVarInsn(ILOAD, L_R);
+        if (isMac(opcode) || opcode == Opcodes.INTERP) {
+            boolean saturate = opcode == Opcodes.MACS || opcode == Opcodes.MACSN || opcode == Opcodes.MACINTS
+                    || opcode == Opcodes.ACC3;
+            mv.visitVarInsn(ILOAD, L_HIGH);
+            mv.visitVarInsn(LLOAD, L_LOW);
+            mv.visitInsn(saturate ? ICONST_1 : ICONST_0);
+            mv.visitMethodInsn(INVOKESTATIC, ALU, "flags", "(IIJZ)I", false);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, ALU, "flags", "(I)I", false);
+        }
+        mv.visitVarInsn(ISTORE, L_CCR);
+    }
+
+    private static void emitInstruction(MethodVisitor mv, Instruction instr, Operands operands) {
+        boolean aIsAccu = instr.getRegA() == Emu10k1.ACCU;
+        boolean mac = isMac(instr.getOpcode());
+        if (!aIsAccu) {
+            emitRead(mv, instr.getRegA(), operands);
+            mv.visitInsn(I2L);
+            mv.visitVarInsn(LSTORE, L_A);
+        } else if (!mac) {
+            // Other opcodes see the accumulator saturated to a long
+            mv.visitVarInsn(ILOAD, L_HIGH);
+            mv.visitVarInsn(LLOAD, L_LOW);
+            mv.visitMethodInsn(INVOKESTATIC, ACCUMULATOR, "saturate", "(IJ)J", false);
+            mv.visitVarInsn(LSTORE, L_A);
+        }
+        emitRead(mv, instr.getRegX(), operands);
+        mv.visitVarInsn(ISTORE, L_X);
+        emitRead(mv, instr.getRegY(), operands);
+        mv.visitVarInsn(ISTORE, L_Y);
+
+        switch (instr.getOpcode()) {
+            case Opcodes.MACS:
+                emitMac(mv, aIsAccu, "macs", true);
+                emitWrite(mv, instr.getRegR(), operands);
+                return;
+            case Opcodes.MACSN:
+                emitMac(mv, aIsAccu, "macsn", true);
+                emitWrite(mv, instr.getRegR(), operands);
+                return;
+            case Opcodes.MACW:
+                emitMac(mv, aIsAccu, "macs", false);
+                emitWrite(mv, instr.getRegR(), operands);
+                return;
+            case Opcodes.MACWN:
+                emitMac(mv, aIsAccu, "macsn", false);
+                emitWrite(mv, instr.getRegR(), operands);
+                return;
+            case Opcodes.MACINTS:
+                emitMac(mv, aIsAccu, "macints", true);
+                emitWrite(mv, instr.getRegR(), operands);
+                return;
+            case Opcodes.MACINTW:
+                emitMac(mv, aIsAccu, "macints", false);
+                emitWrite(mv, instr.getRegR(), operands);
+                return;
+            case Opcodes.ACC3:
+                if (!aIsAccu) {
+                    mv.visitVarInsn(LLOAD, L_A);
+                    emitSetAccu(mv);
+                }
+                mv.visitVarInsn(ILOAD, L_X);
+                mv.visitInsn(I2L);
+                emitAdd(mv);
+                mv.visitVarInsn(ILOAD, L_Y);
+                mv.visitInsn(I2L);
+                emitAdd(mv);
+                emitR(mv, true);
+                emitWrite(mv, instr.getRegR(), operands);
+                return;
+            case Opcodes.INTERP:
+                mv.visitVarInsn(LLOAD, L_A);
+                emitXY(mv);
+                mv.visitMethodInsn(INVOKESTATIC, ALU, "interp", "(JII)J", false);
+                emitSetAccu(mv);
+                emitR(mv, false);
+                emitWrite(mv, instr.getRegR(), operands);
+                return;
+            case Opcodes.MACMV:
+                mv.visitVarInsn(LLOAD, L_A);
+                mv.visitInsn(L2I);
+                mv.visitVarInsn(ISTORE, L_R);
+                emitWrite(mv, instr.getRegR(), operands);
+                emitXY(mv);
+                mv.visitMethodInsn(INVOKESTATIC, ALU, "macints", "(II)J", false);
+                emitAdd(mv);
+                return;
+            case Opcodes.ANDXOR:
+                mv.visitVarInsn(LLOAD, L_A);
+                mv.visitInsn(L2I);
+                emitXY(mv);
+                mv.visitMethodInsn(INVOKESTATIC, ALU, "andxor", "(III)I", false);
+                break;
+            case Opcodes.TESTNEG:
+                emitOp(mv, "testneg");
+                break;
+            case Opcodes.LIMIT:
+                emitOp(mv, "limit");
+                break;
+            case Opcodes.LIMITL:
+                emitOp(mv, "limitl");
+                break;
+            case Opcodes.LOG:
+                emitOp(mv, "log");
+                break;
+            case Opcodes.EXP:
+                mv.visitVarInsn(LLOAD, L_A);
+                mv.visitInsn(L2I);
+                emitXY(mv);
+                mv.visitMethodInsn(INVOKESTATIC, ALU, "exp", "(III)I", false);
+                break;
+            default:
+                return;
+        }
+        // The int result is both R and the new accu
+        mv.visitVarInsn(ISTORE, L_R);
+        mv.visitVarInsn(ILOAD, L_R);
+        mv.visitInsn(I2L);
+        emitSetAccu(mv);
+        emitWrite(mv, instr.getRegR(), operands);
+    }
+
+    /**
+     * Whether the opcode adds to A on all the accumulator's bits.
+     */
+    private static boolean isMac(int opcode) {
+        return opcode <= Opcodes.MACINTW || opcode == Opcodes.ACC3;
+    }
+
+    private static void emitXY(MethodVisitor mv) {
+        mv.visitVarInsn(ILOAD, L_X);
+        mv.visitVarInsn(ILOAD, L_Y);
+    }
+
+    private static void emitOp(MethodVisitor mv, String name) {
+        mv.visitVarInsn(LLOAD, L_A);
+        emitXY(mv);
+        mv.visitMethodInsn(INVOKESTATIC, ALU, name, "(JII)I", false);
+    }
+
+    private static void emitMac(MethodVisitor mv, boolean aIsAccu, String name, boolean saturate) {
+        if (!aIsAccu) {
+            mv.visitVarInsn(LLOAD, L_A);
+            emitSetAccu(mv);
+        }
+        emitXY(mv);
+        mv.visitMethodInsn(INVOKESTATIC, ALU, name, "(II)J", false);
+        emitAdd(mv);
+        emitR(mv, saturate);
+    }
+
+    /**
+     * Replaces the accumulator with the long on top of the stack.
+     */
+    private static void emitSetAccu(MethodVisitor mv) {
+        mv.visitInsn(DUP2);
+        mv.visitVarInsn(LSTORE, L_LOW);
+        mv.visitIntInsn(BIPUSH, 63);
+        mv.visitInsn(LSHR);
+        mv.visitInsn(L2I);
+        mv.visitVarInsn(ISTORE, L_HIGH);
+    }
+
+    /**
+     * Adds the long on top of the stack to the accumulator.
+     */
+    private static void emitAdd(MethodVisitor mv) {
+        mv.visitVarInsn(LSTORE, L_TERM);
+        mv.visitVarInsn(LLOAD, L_LOW);
+        mv.visitVarInsn(LLOAD, L_TERM);
+        mv.visitInsn(LADD);
+        mv.visitVarInsn(LSTORE, L_SUM);
+        mv.visitVarInsn(ILOAD, L_HIGH);
+        mv.visitVarInsn(LLOAD, L_LOW);
+        mv.visitVarInsn(LLOAD, L_TERM);
+        mv.visitVarInsn(LLOAD, L_SUM);
+        mv.visitMethodInsn(INVOKESTATIC, ACCUMULATOR, "addHigh", "(IJJJ)I", false);
+        mv.visitVarInsn(ISTORE, L_HIGH);
+        mv.visitVarInsn(LLOAD, L_SUM);
+        mv.visitVarInsn(LSTORE, L_LOW);
+    }
+
+    /**
+     * Derives R from the accumulator.
+     */
+    private static void emitR(MethodVisitor mv, boolean saturate) {
+        if (saturate) {
+            mv.visitVarInsn(ILOAD, L_HIGH);
+            mv.visitVarInsn(LLOAD, L_LOW);
+            mv.visitMethodInsn(INVOKESTATIC, ACCUMULATOR, "clamp", "(IJ)I", false);
+        } else {
+            mv.visitVarInsn(LLOAD, L_LOW);
+            mv.visitInsn(L2I);
+        }
+        mv.visitVarInsn(ISTORE, L_R);
+    }
+
+    private static void emitRead(MethodVisitor mv, short addr, Operands operands) {
+        if (addr == Emu10k1.CCR && operands.ccr) {
+            mv.visitVarInsn(ILOAD, L_CCR);
+        } else if (addr >= Emu10k1.GPR_START && addr <= Emu10k1.GPR_END && operands.gprLocals != null) {
+            mv.visitVarInsn(ILOAD, operands.gprLocals[addr - Emu10k1.GPR_START]);
+        } else if (addr >= Emu10k1.GPR_START && addr <= Emu10k1.GPR_END) {
+            mv.visitVarInsn(ALOAD, L_GPR);
+            mv.visitLdcInsn(addr - Emu10k1.GPR_START);
+            mv.visitInsn(IALOAD);
+        } else if (addr >= Emu10k1.CONST_START && addr <= Emu10k1.CONST_END) {
+            mv.visitLdcInsn(Emu10k1.CONSTANTS.get((short) (addr - Emu10k1.CONST_START)));
+        } else {
+            mv.visitVarInsn(ALOAD, L_OPS);
+            mv.visitLdcInsn(operands.index(addr));
+            mv.visitInsn(AALOAD);
+            mv.visitMethodInsn(INVOKEVIRTUAL, OPERAND, "read", "()I", false);
+        }
+    }
+
+    /**
+     * Writes the value of the R local to the given address.
+     */
+    private static void emitWrite(MethodVisitor mv, short addr, Operands operands) {
+        if (addr >= Emu10k1.GPR_START && addr <= Emu10k1.GPR_END && operands.gprLocals != null) {
+            mv.visitVarInsn(ILOAD, L_R);
+            mv.visitVarInsn(ISTORE, operands.gprLocals[addr - Emu10k1.GPR_START]);
+        } else if (addr >= Emu10k1.GPR_START && addr <= Emu10k1.GPR_END) {
+            mv.visitVarInsn(ALOAD, L_GPR);
+            mv.visitLdcInsn(addr - Emu10k1.GPR_START);
+            mv.visitVarInsn(ILOAD, L_R);
+            mv.visitInsn(IASTORE);
+        } else if (addr >= Emu10k1.CONST_START && addr <= Emu10k1.CONST_END) {
+            // No writing to constants
+        } else {
+            mv.visitVarInsn(ALOAD, L_OPS);
+            mv.visitLdcInsn(operands.index(addr));
+            mv.visitInsn(AALOAD);
+            mv.visitVarInsn(ILOAD, L_R);
+            mv.visitMethodInsn(INVOKEVIRTUAL, OPERAND, "write", "(I)V", false);
+        }
+    }
+
+    /**
+     * Assigns slots in the generated program's operand array to addresses.
+     */
+    private static class Operands {
+        /**
+         * Whether the program reads CCR, so it's kept in a local.
+         */
+        private final boolean ccr;
+        /**
+         * Local variable of each GPR, in kernels.
+         */
+        private int[] gprLocals;
+        private final TShortIntMap slots = new TShortIntHashMap(16, 0.5f, (short) -1, -1);
+        private final TShortArrayList addrs = new TShortArrayList();
+
+        Operands(boolean ccr) {
+            this.ccr = ccr;
+        }
+
+        int index(short addr) {
+            int idx = slots.get(addr);
+            if (idx < 0) {
+                idx = addrs.size();
+                addrs.add(addr);
+                slots.put(addr, idx);
+            }
+            return idx;
+        }
+    }
+
+    protected static class Generated {
+        private final Constructor<? extends CompiledProgram> ctor;
+        private final short[] addrs;
+        private final byte[] bytes;
+
+        protected Generated(Constructor<? extends CompiledProgram> ctor, short[] addrs, byte[] bytes) {
+            this.ctor = ctor;
+            this.addrs = addrs;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Fingerprint of the code that generated classes depend on, computed once.
+     */
+    private static class Fingerprint {
+        static final byte[] VALUE = ProgramCache.fingerprint(BytecodeCompiler.class, CompiledProgram.class,
+                CompiledKernel.class, Operand.class, Alu.class, Accumulator.class, DSP.class, Emu10k1.class);
+    }
+
+    private static class Loader extends ClassLoader {
+
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(byte[] bytes) {
+            return defineClass(null, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link Compiler} that remembers what it compiled, so that compiling the
+ * same source again returns the same {@link Program} instance.
+ * <p>
+ * Sources are keyed by their SHA-256 hash, so the cache doesn't keep the
+ * sources themselves alive.
+ */
+public class CachingCompiler implements Compiler {
+    private final Compiler backend;
+    private final ConcurrentMap<Key, Program> cache = new ConcurrentHashMap<>();
+
+    public CachingCompiler(Compiler backend) {
+        this.backend = backend;
+    }
+
+    @Override
+    public Program compile(String assembly) {
+        Key key = new Key(hash(assembly));
+        Program program = cache.get(key);
+        if (program == null) {
+            program = backend.compile(assembly);
+            Program old = cache.putIfAbsent(key, program);
+            if (old != null) {
+                program = old;
+            }
+        }
+        return program;
+    }
+
+    public Compiler getBackend() {
+        return backend;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    private static byte[] hash(String assembly) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(assembly.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Key {
+        private final byte[] hash;
+        private final int hashCode;
+
+        Key(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = (hash[0] & 0xff) | (hash[1] & 0xff) << 8 | (hash[2] & 0xff) << 16 | hash[3] << 24;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(hash, ((Key) obj).hash);
+        }
+    }
+}
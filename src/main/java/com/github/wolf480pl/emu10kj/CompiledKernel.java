@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * Base class of the block kernels generated by {@link BytecodeCompiler}.
+ * <p>
+ * A kernel loops over the frames of a block itself, so that the GPRs and the
+ * accumulator can stay in local variables for the whole block, and are only
+ * loaded from and stored to the DSP once per block.
+ */
+public abstract class CompiledKernel extends CompiledProgram implements BlockProgram {
+    private final Emu10k1 emu;
+
+    protected CompiledKernel(Program source, Emu10k1 dsp, int[] gpr, Operand[] ops) {
+        super(source, dsp, gpr, ops);
+        this.emu = dsp;
+    }
+
+    @Override
+    protected void execute(Accumulator accu) {
+        kernel(accu, 1, false);
+    }
+
+    @Override
+    public void runBlock(int frames) {
+        kernel(emu.accumulator(), frames, true);
+    }
+
+    protected final void beginFrame(int frame) {
+        emu.beginFrame(frame);
+    }
+
+    protected final void endFrame() {
+        emu.endFrame();
+    }
+
+    /**
+     * Runs the program <code>frames</code> times.
+     *
+     * @param hooks whether to advance the DSP (IO frame, noise, DBAC) around
+     *        each frame, as opposed to running one frame of a block the DSP
+     *        is ticking itself
+     */
+    protected abstract void kernel(Accumulator accu, int frames, boolean hooks);
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import gnu.trove.map.TShortIntMap;
+
+/**
+ * Base class of the programs generated by {@link BytecodeCompiler}.
+ * <p>
+ * An instance is bound to the DSP it was created for: GPRs are accessed
+ * directly in that DSP's array, and every other operand through the
+ * pre-resolved {@link Operand}s.
+ */
+public abstract class CompiledProgram implements Program {
+    private final Program source;
+    protected final DSP dsp;
+    protected final int[] gpr;
+    protected final Operand[] ops;
+
+    protected CompiledProgram(Program source, DSP dsp, int[] gpr, Operand[] ops) {
+        this.source = source;
+        this.dsp = dsp;
+        this.gpr = gpr;
+        this.ops = ops;
+    }
+
+    @Override
+    public int getInstrCount() {
+        return source.getInstrCount();
+    }
+
+    @Override
+    public int getGPRCount() {
+        return source.getGPRCount();
+    }
+
+    @Override
+    public int getItramSize() {
+        return source.getItramSize();
+    }
+
+    @Override
+    public int getXtramSize() {
+        return source.getXtramSize();
+    }
+
+    @Override
+    public Instruction[] getInstructions() {
+        return source.getInstructions();
+    }
+
+    @Override
+    public TShortIntMap getInitialValues() {
+        return source.getInitialValues();
+    }
+
+    @Override
+    public void run(DSP dsp) {
+        execute(dsp.accumulator());
+    }
+
+    /**
+     * Runs the whole program once.
+     *
+     * @param accu the accumulator of the DSP, updated in place
+     */
+    protected abstract void execute(Accumulator accu);
+}
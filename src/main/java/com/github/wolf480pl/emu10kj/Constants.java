@@ -19,27 +19,68 @@ package com.github.wolf480pl.emu10kj;
 
 import java.util.Arrays;
 
-import gnu.trove.map.TIntShortMap;
-import gnu.trove.map.hash.TIntShortHashMap;
-
+/**
+ * Table of the hardware constants, indexed from 0.
+ * <p>
+ * The reverse lookup is a sorted array of the distinct values with the index
+ * of each, searched by bisection. It is only built the first time it's
+ * needed, since most users of the table never call {@link #find(int)}.
+ */
 public class Constants {
-    private final int[] map;
-    private final TIntShortMap rev = new TIntShortHashMap();
+    private final int[] values;
+    // Built on demand; racing threads just build equal copies
+    private Index index;
 
     public Constants(int[] constants) {
-        int size = Math.max(constants.length, Short.MAX_VALUE);
-        map = Arrays.copyOf(constants, size);
-        for (short i = 0; i < size; ++i) {
-            rev.put(map[i], i);
-        }
+        this.values = constants.clone();
+    }
+
+    public int size() {
+        return values.length;
     }
 
     public int get(short idx) {
-        return map[idx];
+        return values[idx];
     }
 
+    /**
+     * @return the lowest index of a constant equal to <code>constant</code>,
+     *         or -1 if there is none
+     */
     public short find(int constant) {
-        return rev.get(constant);
+        Index index = this.index;
+        if (index == null) {
+            index = new Index(values);
+            this.index = index;
+        }
+        int pos = Arrays.binarySearch(index.sorted, constant);
+        return pos < 0 ? -1 : index.indices[pos];
     }
 
+    private static final class Index {
+        private final int[] sorted;
+        private final short[] indices;
+
+        Index(int[] values) {
+            // Sort value:index pairs, so the lowest index of a value comes first
+            long[] pairs = new long[values.length];
+            for (int i = 0; i < values.length; ++i) {
+                pairs[i] = (long) values[i] << 32 | i;
+            }
+            Arrays.sort(pairs);
+            int[] sorted = new int[pairs.length];
+            short[] indices = new short[pairs.length];
+            int n = 0;
+            for (long pair : pairs) {
+                int value = (int) (pair >> 32);
+                if (n == 0 || sorted[n - 1] != value) {
+                    sorted[n] = value;
+                    indices[n] = (short) pair;
+                    ++n;
+                }
+            }
+            this.sorted = Arrays.copyOf(sorted, n);
+            this.indices = Arrays.copyOf(indices, n);
+        }
+    }
 }
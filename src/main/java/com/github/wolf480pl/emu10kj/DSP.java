@@ -29,9 +29,17 @@ public interface DSP {
 
     void writeAccu(long value);
 
+    Accumulator accumulator();
+
+    int readCcr();
+
+    void writeCcr(int value);
+
     long readMemOrAccuDsp(short address);
 
     void loadProgram(Program program);
 
     void tick();
+
+    void tickBlock(int frames);
 }
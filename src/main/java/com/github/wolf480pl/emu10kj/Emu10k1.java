@@ -23,7 +23,21 @@ import static com.github.wolf480pl.emu10kj.AddressSpaceUtils.empty;
 import static com.github.wolf480pl.emu10kj.AddressSpaceUtils.split;
 import static com.github.wolf480pl.emu10kj.AddressSpaceUtils.tram;
 
-import java.util.Random;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import gnu.trove.iterator.TShortIntIterator;
+import gnu.trove.iterator.TShortShortIterator;
+import gnu.trove.map.TShortIntMap;
+import gnu.trove.map.TShortShortMap;
 
 public class Emu10k1 implements DSP {
     public static final short GPR_COUNT = 256;
@@ -58,36 +72,65 @@ public class Emu10k1 implements DSP {
     public static final short XTRAM_ADDR_START = 0x380;
     public static final short XTRAM_ADDR_END = XTRAM_ADDR_START + XTRAM_REGS - 1;
 
+    /**
+     * "E10K" at the start of a snapshot.
+     */
+    public static final int SNAPSHOT_MAGIC = 0x4b303145;
+    public static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER = 36;
+    // xorshift gets stuck at zero, so these replace zero seeds
+    private static final int NOISE_SEED1 = 0x2545f491;
+    private static final int NOISE_SEED2 = 0x9e3779b9;
+
     private final IO fxbus, extIO;
-    private long accu;
+    private final BlockIO fxBlock, extBlock;
+    private final Accumulator accu = new Accumulator();
     private int ccr;
-    private Random rng1, rng2;
+    /*
+     * Each noise register is the state of its own xorshift generator, which
+     * is only stepped while the program reads either of them.
+     */
     private int noise1, noise2;
+    private boolean readsNoise;
     private int dbac = 0;
-    private TramSpace.OffsetReg tramOffset = new TramOffset();
     private final int[] gpr = new int[GPR_COUNT];
     private final int[] itramAddr = new int[ITRAM_REGS];
     private final int[] xtramAddr = new int[XTRAM_REGS];
-    private final TRAM iTram = new TRAM(ITRAM_SIZE);
+    private final TRAM iTram;
     private final AddressSpace xTram;
+    private final TramSpace iTramSpace, xTramSpace;
     private final AddressSpace dspSpace;
     private Program program = null;
+    // What the program was bound from, so that fork() can bind it again
+    private Program source = null;
+    private Engine engine = null;
+    private final AtomicReference<Swap> pendingSwap = new AtomicReference<>();
+    // Set by a LockstepGroup, which swaps the programs of its DSPs itself
+    boolean grouped = false;
 
     public Emu10k1(IO fxbus, IO extIO, AddressSpace xTram) {
+        this(fxbus, extIO, new TRAM(ITRAM_SIZE), xTram);
+    }
+
+    private Emu10k1(IO fxbus, IO extIO, TRAM iTram, AddressSpace xTram) {
         this.fxbus = fxbus;
         this.extIO = extIO;
+        this.fxBlock = (fxbus instanceof BlockIO) ? (BlockIO) fxbus : null;
+        this.extBlock = (extIO instanceof BlockIO) ? (BlockIO) extIO : null;
+        this.iTram = iTram;
         this.xTram = xTram;
+        this.iTramSpace = tram(iTram, itramAddr);
+        this.xTramSpace = tram(xTram, xtramAddr);
         this.dspSpace = split(10, 2,
                 split(8, 2,
                         split(6, 2, fxbus.inputSpace(), extIO.inputSpace(), extIO.outputSpace(), fxbus.outputSpace()),
                         split(6, 1, new SysSpace(), empty()),
                         empty(), empty()),
                 arr(gpr),
-                split(8, 1, arr(itramAddr), arr(xtramAddr)),
-                split(8, 1, tram(iTram, tramOffset, itramAddr), tram(xTram, tramOffset, xtramAddr)));
+                split(8, 1, iTramSpace, xTramSpace),
+                split(8, 1, arr(itramAddr), arr(xtramAddr)));
 
-        this.rng1 = new Random();
-        this.rng2 = new Random();
+        setNoiseSeed(ThreadLocalRandom.current().nextLong());
     }
 
     @Override
@@ -107,33 +150,504 @@ public class Emu10k1 implements DSP {
 
     @Override
     public long readAccu() {
-        return accu;
+        return accu.read();
     }
 
     @Override
     public void writeAccu(long value) {
-        accu = value;
+        accu.write(value);
+    }
+
+    @Override
+    public Accumulator accumulator() {
+        return accu;
+    }
+
+    @Override
+    public int readCcr() {
+        return ccr;
+    }
+
+    @Override
+    public void writeCcr(int value) {
+        ccr = value;
     }
 
     @Override
     public long readMemOrAccuDsp(short address) {
         if (address == ACCU) {
-            return accu;
+            return accu.read();
         }
         return readMemDsp(address);
     }
 
     @Override
     public void loadProgram(Program program) {
+        TShortIntIterator it = program.getInitialValues().iterator();
+        while (it.hasNext()) {
+            it.advance();
+            writeMemDsp(it.key(), it.value());
+        }
         this.program = program;
+        this.source = program;
+        this.engine = null;
+        this.readsNoise = readsNoise(program);
+    }
+
+    private static boolean readsNoise(Program program) {
+        for (Instruction instr : program.getInstructions()) {
+            if (isNoise(instr.getRegA()) || isNoise(instr.getRegX()) || isNoise(instr.getRegY())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNoise(short address) {
+        return address == NOISE1 || address == NOISE2;
+    }
+
+    /**
+     * Restarts the noise generators from the given seed, so that NOISE1 and
+     * NOISE2 read the same sequence for the same seed and program.
+     */
+    public void setNoiseSeed(long seed) {
+        this.noise1 = nonZero((int) seed, NOISE_SEED1);
+        this.noise2 = nonZero((int) (seed >>> 32), NOISE_SEED2);
+    }
+
+    private static int nonZero(int state, int fallback) {
+        return state != 0 ? state : fallback;
+    }
+
+    private static int xorshift(int x) {
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return x;
+    }
+
+    /**
+     * Loads the program, letting the given engine prepare it for running on
+     * this particular DSP first.
+     */
+    public void loadProgram(Program program, Engine engine) {
+        loadProgram(engine.bind(program, this));
+        this.source = program;
+        this.engine = engine;
+    }
+
+    /**
+     * Replaces the program at the start of the next block, so that it can be
+     * called while another thread is ticking this DSP.
+     * The program is bound by the engine (if not null) on the calling thread.
+     * When the swap happens, the initial values of the new program are
+     * written, and then each GPR that is a key of <code>migration</code> (if
+     * not null) gets the value its mapped GPR had under the old program.
+     * A swap that hasn't happened yet is replaced by a later one.
+     * <p>
+     * Everything the swap needs is prepared here, so that the thread ticking
+     * the DSP only copies values when it applies it.
+     *
+     * @throws IllegalStateException if this DSP belongs to a
+     *         {@link LockstepGroup}, whose program has to be swapped with
+     *         {@link LockstepGroup#swapProgram} instead
+     */
+    public void swapProgram(Program program, Engine engine, TShortShortMap migration) {
+        if (grouped) {
+            throw new IllegalStateException("DSP belongs to a LockstepGroup, swap the group's program instead");
+        }
+        pendingSwap.set(prepareSwap(program, engine, migration));
+    }
+
+    public void swapProgram(Program program, Engine engine) {
+        swapProgram(program, engine, null);
+    }
+
+    /**
+     * Prepares everything {@link #applySwap(Swap)} needs to swap in the
+     * program, as described in {@link #swapProgram}.
+     */
+    Swap prepareSwap(Program program, Engine engine, TShortShortMap migration) {
+        int migrated = migration != null ? migration.size() : 0;
+        int[] to = new int[migrated];
+        int[] from = new int[migrated];
+        if (migration != null) {
+            TShortShortIterator it = migration.iterator();
+            for (int i = 0; i < migrated; ++i) {
+                it.advance();
+                to[i] = checkGpr(it.key()) - GPR_START;
+                from[i] = checkGpr(it.value()) - GPR_START;
+            }
+        }
+        TShortIntMap init = program.getInitialValues();
+        short[] initAddrs = new short[init.size()];
+        int[] initValues = new int[init.size()];
+        TShortIntIterator it = init.iterator();
+        for (int i = 0; i < initAddrs.length; ++i) {
+            it.advance();
+            initAddrs[i] = it.key();
+            initValues[i] = it.value();
+        }
+        Program bound = engine != null ? engine.bind(program, this) : program;
+        return new Swap(bound, program, engine, readsNoise(program), initAddrs, initValues, to, from);
+    }
+
+    /**
+     * Whether a program passed to {@link #swapProgram} is still waiting for
+     * the next block.
+     */
+    public boolean isSwapPending() {
+        return pendingSwap.get() != null;
+    }
+
+    void applySwap(Swap swap) {
+        // Read all the sources before any GPR is overwritten
+        int[] migrated = swap.migrated;
+        for (int i = 0; i < migrated.length; ++i) {
+            migrated[i] = gpr[swap.migrateFrom[i]];
+        }
+        for (int i = 0; i < swap.initAddrs.length; ++i) {
+            writeMemDsp(swap.initAddrs[i], swap.initValues[i]);
+        }
+        for (int i = 0; i < migrated.length; ++i) {
+            gpr[swap.migrateTo[i]] = migrated[i];
+        }
+        this.program = swap.program;
+        this.source = swap.source;
+        this.engine = swap.engine;
+        this.readsNoise = swap.readsNoise;
+    }
+
+    private static short checkGpr(short address) {
+        if (address < GPR_START || address > GPR_END) {
+            throw new IllegalArgumentException("Not a GPR: " + address);
+        }
+        return address;
+    }
+
+    private static void checkGprs(short start, int len) {
+        if (len < 0) {
+            throw new IllegalArgumentException("Negative length: " + len);
+        }
+        checkGpr(start);
+        if (len > 0 && start + len - 1 > GPR_END) {
+            throw new IllegalArgumentException("GPRs past the end: " + start + "+" + len);
+        }
+    }
+
+    /**
+     * Copies <code>len</code> GPRs starting at DSP address <code>start</code>
+     * into <code>dst</code>.
+     */
+    public void readGprs(short start, int[] dst, int off, int len) {
+        checkGprs(start, len);
+        System.arraycopy(gpr, start - GPR_START, dst, off, len);
+    }
+
+    /**
+     * Copies <code>len</code> values from <code>src</code> into the GPRs
+     * starting at DSP address <code>start</code>.
+     */
+    public void writeGprs(short start, int[] src, int off, int len) {
+        checkGprs(start, len);
+        System.arraycopy(src, off, gpr, start - GPR_START, len);
+    }
+
+    /**
+     * Creates a DSP in the same state as this one, connected to the given IO.
+     * <p>
+     * The TRAM is shared copy-on-write when it's a {@link TRAM}, copied to a
+     * new direct buffer when it's a {@link BufferTram}, and copied to a new
+     * {@link TRAM} when it's some other {@link TramBackend}. The program is
+     * bound again to the copy if it was loaded with an {@link Engine}, and
+     * shared otherwise, so it must not be bound to this DSP in that case.
+     * The copy generates the same noise as this DSP from then on.
+     * Must not run concurrently with {@link #tickBlock(int)}.
+     *
+     * @throws IllegalArgumentException if the external TRAM isn't a
+     *         {@link TramBackend}, and can't be copied
+     */
+    public Emu10k1 fork(IO fxbus, IO extIO) {
+        AddressSpace xTram;
+        if (this.xTram instanceof TRAM) {
+            xTram = ((TRAM) this.xTram).fork();
+        } else if (this.xTram instanceof BufferTram) {
+            xTram = ((BufferTram) this.xTram).fork();
+        } else if (this.xTram instanceof TramBackend) {
+            TramBackend from = (TramBackend) this.xTram;
+            TRAM copy = new TRAM(from.size());
+            int[] buf = new int[Math.min(from.size(), ITRAM_SIZE)];
+            for (int addr = 0; addr < from.size(); addr += buf.length) {
+                from.read(addr, buf, 0, buf.length);
+                copy.write(addr, buf, 0, buf.length);
+            }
+            xTram = copy;
+        } else {
+            throw new IllegalArgumentException("Can't copy external TRAM: " + this.xTram);
+        }
+        Emu10k1 fork = new Emu10k1(fxbus, extIO, iTram.fork(), xTram);
+        System.arraycopy(gpr, 0, fork.gpr, 0, GPR_COUNT);
+        System.arraycopy(itramAddr, 0, fork.itramAddr, 0, ITRAM_REGS);
+        System.arraycopy(xtramAddr, 0, fork.xtramAddr, 0, XTRAM_REGS);
+        fork.accu.write(accu.getHigh(), accu.getLow());
+        fork.ccr = ccr;
+        fork.noise1 = noise1;
+        fork.noise2 = noise2;
+        fork.readsNoise = readsNoise;
+        fork.setDbac(dbac);
+        if (program != null) {
+            fork.program = engine != null ? engine.bind(source, fork) : program;
+            fork.source = source;
+            fork.engine = engine;
+        }
+        return fork;
+    }
+
+    /**
+     * Size in bytes of what {@link #snapshot(ByteBuffer)} writes.
+     */
+    public int snapshotSize() {
+        return SNAPSHOT_HEADER + (GPR_COUNT + ITRAM_REGS + XTRAM_REGS + 2 + ITRAM_SIZE + xTramSnapshotSize()) * 4;
+    }
+
+    private int xTramSnapshotSize() {
+        return xTram instanceof TramBackend ? ((TramBackend) xTram).size() : 0;
+    }
+
+    /**
+     * Writes the state of this DSP (registers, accumulator, CCR, TRAM and its
+     * address registers) to <code>buf</code>, little endian.
+     * The program isn't included. The external TRAM is only included if it's
+     * a {@link TramBackend}.
+     */
+    public void snapshot(ByteBuffer buf) {
+        ByteBuffer out = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION);
+        out.putLong(accu.getLow()).putInt(accu.getHigh());
+        out.putInt(ccr).putInt(dbac).putInt(noise1).putInt(noise2);
+        IntBuffer ints = out.asIntBuffer();
+        ints.put(gpr).put(itramAddr).put(xtramAddr);
+        putTram(ints, iTram);
+        if (xTram instanceof TramBackend) {
+            putTram(ints, (TramBackend) xTram);
+        } else {
+            ints.put(0);
+        }
+        buf.position(buf.position() + snapshotSize());
+    }
+
+    public void snapshot(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, snapshotSize());
+            snapshot(buf);
+            buf.force();
+        }
+    }
+
+    /**
+     * Restores the state written by {@link #snapshot(ByteBuffer)}.
+     * The TRAM sizes must match. Load the program before restoring, since
+     * loading writes its initial values.
+     */
+    public void restore(ByteBuffer buf) {
+        ByteBuffer in = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() < SNAPSHOT_HEADER || in.getInt() != SNAPSHOT_MAGIC) {
+            throw new IllegalArgumentException("Not a DSP snapshot");
+        }
+        int version = in.getInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version: " + version);
+        }
+        if (in.remaining() < snapshotSize() - 8) {
+            throw new IllegalArgumentException("Snapshot too short: " + buf.remaining());
+        }
+        long low = in.getLong();
+        int high = in.getInt();
+        int ccr = in.getInt();
+        int dbac = in.getInt();
+        int noise1 = in.getInt();
+        int noise2 = in.getInt();
+        IntBuffer ints = in.asIntBuffer();
+        int tramAt = GPR_COUNT + ITRAM_REGS + XTRAM_REGS;
+        int xTramAt = tramAt + 1 + ITRAM_SIZE;
+        if (ints.get(tramAt) != ITRAM_SIZE || ints.get(xTramAt) != xTramSnapshotSize()) {
+            throw new IllegalArgumentException("TRAM size mismatch: " + ints.get(tramAt) + "/" + ints.get(xTramAt));
+        }
+        ints.get(gpr).get(itramAddr).get(xtramAddr);
+        getTram(ints, iTram);
+        if (xTram instanceof TramBackend) {
+            getTram(ints, (TramBackend) xTram);
+        }
+        accu.write(high, low);
+        this.ccr = ccr;
+        this.noise1 = nonZero(noise1, NOISE_SEED1);
+        this.noise2 = nonZero(noise2, NOISE_SEED2);
+        setDbac(dbac);
+        buf.position(buf.position() + snapshotSize());
+    }
+
+    public void restore(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            restore(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    private static void putTram(IntBuffer dst, TramBackend tram) {
+        int size = tram.size();
+        dst.put(size);
+        int[] buf = new int[Math.min(size, ITRAM_SIZE)];
+        for (int addr = 0; addr < size; addr += buf.length) {
+            tram.read(addr, buf, 0, buf.length);
+            dst.put(buf);
+        }
+    }
+
+    private static void getTram(IntBuffer src, TramBackend tram) {
+        int size = src.get();
+        int[] buf = new int[Math.min(size, ITRAM_SIZE)];
+        for (int addr = 0; addr < size; addr += buf.length) {
+            src.get(buf);
+            tram.write(addr, buf, 0, buf.length);
+        }
+    }
+
+    /**
+     * Resolves a DSP address to an {@link Operand}.
+     * The ACCU address resolves to what it reads as when used as X or Y.
+     */
+    public Operand operand(short address) {
+        if (address >= CONST_START && address <= CONST_END) {
+            return Operand.constant(CONSTS[address - CONST_START]);
+        }
+        return Operand.resolve(dspSpace, address);
+    }
+
+    /**
+     * Reads what the TRAM data register at <code>address</code> would read
+     * during each of the next <code>frames</code> frames.
+     */
+    public void readTramBlock(short address, int[] dst, int off, int frames) {
+        if (address >= ITRAM_DATA_START && address <= ITRAM_DATA_END) {
+            iTramSpace.readBlock(address - ITRAM_DATA_START, dst, off, frames);
+        } else if (address >= XTRAM_DATA_START && address <= XTRAM_DATA_END) {
+            xTramSpace.readBlock(address - XTRAM_DATA_START, dst, off, frames);
+        } else {
+            throw new IllegalArgumentException("Not a TRAM data register: " + address);
+        }
+    }
+
+    /**
+     * Writes what the TRAM data register at <code>address</code> would write
+     * during each of the next <code>frames</code> frames.
+     */
+    public void writeTramBlock(short address, int[] src, int off, int frames) {
+        if (address >= ITRAM_DATA_START && address <= ITRAM_DATA_END) {
+            iTramSpace.writeBlock(address - ITRAM_DATA_START, src, off, frames);
+        } else if (address >= XTRAM_DATA_START && address <= XTRAM_DATA_END) {
+            xTramSpace.writeBlock(address - XTRAM_DATA_START, src, off, frames);
+        } else {
+            throw new IllegalArgumentException("Not a TRAM data register: " + address);
+        }
+    }
+
+    private void setDbac(int value) {
+        dbac = value;
+        iTramSpace.setOffset(value);
+        xTramSpace.setOffset(value);
+    }
+
+    int[] gprArray() {
+        return gpr;
     }
 
     @Override
     public void tick() {
-        this.noise1 = rng1.nextInt();
-        this.noise2 = rng2.nextInt();
-        program.run(this);
-        ++dbac;
+        tickBlock(1);
+    }
+
+    @Override
+    public void tickBlock(int frames) {
+        if (pendingSwap.get() != null) {
+            applySwap(pendingSwap.getAndSet(null));
+        }
+        Program program = this.program;
+        beginBlock(frames);
+        if (program instanceof BlockProgram) {
+            ((BlockProgram) program).runBlock(frames);
+        } else {
+            for (int i = 0; i < frames; ++i) {
+                beginFrame(i);
+                program.run(this);
+                endFrame();
+            }
+        }
+        endBlock(frames);
+    }
+
+    /*
+     * The steps of tickBlock() around running the program, for running it
+     * some other way (e.g. on many DSPs at once).
+     */
+
+    void beginBlock(int frames) {
+        if (fxBlock != null) {
+            fxBlock.beginBlock(frames);
+        }
+        if (extBlock != null) {
+            extBlock.beginBlock(frames);
+        }
+    }
+
+    void beginFrame(int frame) {
+        if (fxBlock != null) {
+            fxBlock.setFrame(frame);
+        }
+        if (extBlock != null) {
+            extBlock.setFrame(frame);
+        }
+        if (readsNoise) {
+            this.noise1 = xorshift(noise1);
+            this.noise2 = xorshift(noise2);
+        }
+    }
+
+    void endFrame() {
+        setDbac(dbac + 1);
+    }
+
+    void endBlock(int frames) {
+        if (fxBlock != null) {
+            fxBlock.endBlock(frames);
+        }
+        if (extBlock != null) {
+            extBlock.endBlock(frames);
+        }
+    }
+
+    static final class Swap {
+        final Program program, source;
+        final Engine engine;
+        final boolean readsNoise;
+        // Initial values of the program, written in this order
+        final short[] initAddrs;
+        final int[] initValues;
+        // GPR indices migrated from and to, with room for the values
+        final int[] migrateTo, migrateFrom, migrated;
+
+        Swap(Program program, Program source, Engine engine, boolean readsNoise, short[] initAddrs, int[] initValues,
+                int[] migrateTo, int[] migrateFrom) {
+            this.program = program;
+            this.source = source;
+            this.engine = engine;
+            this.readsNoise = readsNoise;
+            this.initAddrs = initAddrs;
+            this.initValues = initValues;
+            this.migrateTo = migrateTo;
+            this.migrateFrom = migrateFrom;
+            this.migrated = new int[migrateTo.length];
+        }
     }
 
     private static final int[] CONSTS = new int[] { 0, 1, 2, 3, 4, 8, 0x10, 0x20, 0x100, 0x10000, 0x80000, 0x10000000,
@@ -202,7 +716,7 @@ public class Emu10k1 implements DSP {
                     break;
                 case L_DBAC:
                     // TODO should we allow this?
-                    dbac = value;
+                    setDbac(value);
                     break;
                 default:
                     // Reserved / unknown, so NOP
@@ -211,11 +725,5 @@ public class Emu10k1 implements DSP {
         }
     }
 
-    protected class TramOffset implements TramSpace.OffsetReg {
-        @Override
-        public int get() {
-            return dbac;
-        }
-    }
 
 }
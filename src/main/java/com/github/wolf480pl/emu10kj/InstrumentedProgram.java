@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import gnu.trove.map.TShortIntMap;
+
+/**
+ * Wraps a program (usually one already bound by an {@link Engine}) to measure
+ * how long each run takes, and how many of them miss the deadline of one
+ * sample period.
+ * <p>
+ * Instrumentation is opt-in: a program that isn't wrapped runs exactly as
+ * before. A wrapped one costs two {@link System#nanoTime()} calls per run
+ * and doesn't allocate. Opcode counts are not counted as the program runs,
+ * but derived from the number of runs and the opcodes in the program, so
+ * with SKIP they're the counts of instructions issued, skipped or not.
+ * <p>
+ * A program that runs whole blocks by itself, like a block kernel of
+ * {@link BytecodeCompiler}, is still run a block at a time when wrapped. Each
+ * frame of a block then counts as one run taking the block's mean time.
+ * <p>
+ * The metrics can be exposed over JMX with {@link #register(String)}.
+ */
+public class InstrumentedProgram implements Program, ProgramMetricsMXBean {
+    public static final String DOMAIN = "com.github.wolf480pl.emu10kj";
+
+    private final Program program;
+    private final long deadline;
+    private final int[] opcodes = new int[Opcodes.COUNT];
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong misses = new AtomicLong();
+
+    private InstrumentedProgram(Program program, int sampleRate) {
+        this.program = program;
+        this.deadline = 1000000000L / sampleRate;
+        for (Instruction instr : program.getInstructions()) {
+            ++opcodes[instr.getOpcode()];
+        }
+    }
+
+    /**
+     * Wraps <code>program</code>, keeping it running a block at a time if it
+     * does.
+     *
+     * @param sampleRate the rate at which the program is going to be run, in
+     *        Hz
+     */
+    public static InstrumentedProgram wrap(Program program, int sampleRate) {
+        if (program instanceof BlockProgram) {
+            return new Block((BlockProgram) program, sampleRate);
+        }
+        return new InstrumentedProgram(program, sampleRate);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, as
+     * <code>com.github.wolf480pl.emu10kj:type=Program,name=</code><i>name</i>.
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=Program,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Can't register metrics as " + name, e);
+        }
+    }
+
+    public Program getProgram() {
+        return program;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public void run(DSP dsp) {
+        long start = System.nanoTime();
+        program.run(dsp);
+        record(System.nanoTime() - start, 1);
+    }
+
+    /**
+     * Records <code>frames</code> runs that took <code>elapsed</code>
+     * nanoseconds altogether.
+     */
+    void record(long elapsed, int frames) {
+        long each = elapsed / frames;
+        latency.record(each, frames);
+        if (each > deadline) {
+            misses.lazySet(misses.get() + frames);
+        }
+    }
+
+    @Override
+    public int getInstrCount() {
+        return program.getInstrCount();
+    }
+
+    @Override
+    public int getGPRCount() {
+        return program.getGPRCount();
+    }
+
+    @Override
+    public int getItramSize() {
+        return program.getItramSize();
+    }
+
+    @Override
+    public int getXtramSize() {
+        return program.getXtramSize();
+    }
+
+    @Override
+    public Instruction[] getInstructions() {
+        return program.getInstructions();
+    }
+
+    @Override
+    public TShortIntMap getInitialValues() {
+        return program.getInitialValues();
+    }
+
+    @Override
+    public long getRuns() {
+        return latency.getCount();
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeCounts() {
+        long runs = getRuns();
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int op = 0; op < opcodes.length; ++op) {
+            counts.put(Opcodes.name(op), runs * opcodes[op]);
+        }
+        return counts;
+    }
+
+    @Override
+    public long getDeadlineNanos() {
+        return deadline;
+    }
+
+    @Override
+    public long getDeadlineMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public double getMeanNanos() {
+        return latency.getMean();
+    }
+
+    @Override
+    public long getMaxNanos() {
+        return latency.getMax();
+    }
+
+    @Override
+    public long getMedianNanos() {
+        return latency.getPercentile(50);
+    }
+
+    @Override
+    public long getP99Nanos() {
+        return latency.getPercentile(99);
+    }
+
+    @Override
+    public long getP999Nanos() {
+        return latency.getPercentile(99.9);
+    }
+
+    @Override
+    public long getPercentileNanos(double percentile) {
+        return latency.getPercentile(percentile);
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        misses.set(0);
+    }
+
+    private static final class Block extends InstrumentedProgram implements BlockProgram {
+        private final BlockProgram program;
+
+        Block(BlockProgram program, int sampleRate) {
+            super(program, sampleRate);
+            this.program = program;
+        }
+
+        @Override
+        public void runBlock(int frames) {
+            long start = System.nanoTime();
+            program.runBlock(frames);
+            record(System.nanoTime() - start, frames);
+        }
+    }
+}
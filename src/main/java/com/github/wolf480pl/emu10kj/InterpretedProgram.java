@@ -17,18 +17,36 @@
  */
 package com.github.wolf480pl.emu10kj;
 
+import gnu.trove.TCollections;
+import gnu.trove.map.TShortIntMap;
+import gnu.trove.map.hash.TShortIntHashMap;
+
 public class InterpretedProgram implements Program {
-    public static final int MAX_VALUE = Integer.MAX_VALUE;
-    public static final int MIN_VALUE = Integer.MIN_VALUE;
+    public static final int MAX_VALUE = Alu.MAX_VALUE;
+    public static final int MIN_VALUE = Alu.MIN_VALUE;
 
-    private final Instruction[] code;
+    private final Microcode microcode;
+    private final long[] code;
     private final int gprs, itram, xtram;
+    private final TShortIntMap init;
+    private final SkipTable skips;
 
     public InterpretedProgram(Instruction[] code, int gprs, int itram, int xtram) {
-        this.code = code;
+        this(Microcode.of(code), gprs, itram, xtram);
+    }
+
+    public InterpretedProgram(Microcode microcode, int gprs, int itram, int xtram) {
+        this(microcode, gprs, itram, xtram, new TShortIntHashMap());
+    }
+
+    public InterpretedProgram(Microcode microcode, int gprs, int itram, int xtram, TShortIntMap init) {
+        this.microcode = microcode;
+        this.code = microcode.words();
         this.gprs = gprs;
         this.itram = itram;
         this.xtram = xtram;
+        this.init = TCollections.unmodifiableMap(new TShortIntHashMap(init));
+        this.skips = new SkipTable(microcode.toInstructions());
     }
 
     @Override
@@ -51,183 +69,141 @@ public class InterpretedProgram implements Program {
         return xtram;
     }
 
+    @Override
+    public Instruction[] getInstructions() {
+        return microcode.toInstructions();
+    }
+
+    @Override
+    public TShortIntMap getInitialValues() {
+        return init;
+    }
+
+    public Microcode getMicrocode() {
+        return microcode;
+    }
+
     @Override
     public void run(DSP dsp) {
-        for (Instruction instr : code) {
+        Accumulator accu = dsp.accumulator();
+        boolean ccr = skips.readsCcr();
+        for (int pc = 0; pc < code.length; ++pc) {
+            long word = code[pc];
             long acc;
             int r;
+            // Whether R came from the accumulator, and how
+            boolean mac = true;
+            boolean saturate = true;
 
-            long la = gprOrAcc(instr.getRegA(), dsp);
+            short regA = Microcode.regA(word);
+            boolean aIsAccu = regA == Emu10k1.ACCU;
+            long la = gprOrAcc(regA, dsp);
             int a = (int) la;
 
-            int x = dsp.readMemDsp(instr.getRegX());
-            int y = dsp.readMemDsp(instr.getRegY());
-            // to ensure long multiplication/comparison/addition is used
-            long lx = x;
-            long ly = y;
+            int x = dsp.readMemDsp(Microcode.regX(word));
+            int y = dsp.readMemDsp(Microcode.regY(word));
+            short regR = Microcode.regR(word);
 
-            byte opcode = instr.getOpcode();
-            switch (opcode) {
+            switch (Microcode.opcode(word)) {
                 case Opcodes.MACS:
+                    mac(accu, aIsAccu, la, Alu.macs(x, y));
+                    r = accu.clamp();
+                    break;
                 case Opcodes.MACSN:
+                    mac(accu, aIsAccu, la, Alu.macsn(x, y));
+                    r = accu.clamp();
+                    break;
                 case Opcodes.MACW:
+                    mac(accu, aIsAccu, la, Alu.macs(x, y));
+                    r = (int) accu.getLow();
+                    saturate = false;
+                    break;
                 case Opcodes.MACWN:
-                    mac(la, dsp, instr.getRegR(), lx, ly, 31, (opcode & (byte) 0x1) != 0, (opcode & (byte) 0x2) == 0);
+                    mac(accu, aIsAccu, la, Alu.macsn(x, y));
+                    r = (int) accu.getLow();
+                    saturate = false;
                     break;
                 case Opcodes.MACINTS:
+                    mac(accu, aIsAccu, la, Alu.macints(x, y));
+                    r = accu.clamp();
+                    break;
                 case Opcodes.MACINTW:
-                    /*
-                     * TODO: With MACINTW, the result is wrapped around but the
-                     * sign bit (bit 31) is zeroed. Essentially the wrap around
-                     * occurs around bit 30 instead of bit 31 (I have no idea
-                     * why this would be useful).
-                     */
-                    mac(la, dsp, instr.getRegR(), lx, ly, 0, false, (opcode & (byte) 0x1) == 0);
+                    mac(accu, aIsAccu, la, Alu.macints(x, y));
+                    r = (int) accu.getLow();
+                    saturate = false;
                     break;
                 case Opcodes.ACC3:
-                    acc = la + lx + ly;
-                    dsp.writeMemDsp(instr.getRegR(), (int) clamp(acc));
-                    dsp.writeAccu(acc);
-
+                    mac(accu, aIsAccu, la, x);
+                    accu.add(y);
+                    r = accu.clamp();
                     break;
                 case Opcodes.MACMV:
                     // Even if A is accu and R is accu, it will get overwritten
                     // later anyway, so don't bother with longs
-                    dsp.writeMemDsp(instr.getRegR(), a);
-                    // TODO: You sure there's no shift here?
-                    acc = dsp.readAccu();
-                    acc += lx * ly;
-                    dsp.writeAccu(acc);
-                    break;
-                case Opcodes.ANDXOR:
-                    // Even if A is accu, the higher bits will be zero after
-                    // anding with X, so don't bother with longs
-                    acc = (a & x) ^ y;
-                    wrAccAndR(dsp, instr.getRegR(), acc);
-
-                    break;
-                case Opcodes.TESTNEG:
-                    // Use long for comparing A and Y, cause A can be accu.
-                    // Don't use long for result, cause it's either X or -X,
-                    // which is always 32 bits
-                    r = (la >= ly) ? x : -x;
-                    wrAccAndR(dsp, instr.getRegR(), r);
-
+                    r = a;
+                    accu.add(Alu.macints(x, y));
+                    mac = false;
                     break;
-                case Opcodes.LIMIT:
-                case Opcodes.LIMITL: {
-                    boolean neg = (opcode & (byte) 0x1) > 0;
-                    // Use long for comparing A and Y, cause A can be accu.
-                    // Don't use long for result, cause it's either X or Y,
-                    // which is always 32 bits
-                    // We use != as boolean XOR
-                    r = ((la >= ly) != neg) ? x : y;
-                    wrAccAndR(dsp, instr.getRegR(), r);
-                }
-                break;
-                case Opcodes.LOG: {
-                    // A is linear input, X is max_exp, Y is sign_reg
-                    boolean negative = la < 0;
-                    int lin = negative ? -a : a;
-                    int shifts = 0;
-                    while (lin > 0 && shifts >= x) {
-                        lin = lin << 1;
-                        ++shifts;
-                    }
-                    int exp = x - shifts;
-                    if (exp < 0) {
-                        exp = 0;
-                    } else {
-                        exp += 1;
-                        lin = lin << 1;
-                    }
-                    int expbits = expBits(x);
-                    lin = lin >>> expbits + 1;
-                    exp = exp << 31 - expbits;
-                    r = exp | lin;
-                    /*
-                     * y - sign_reg
-                     * 00b - r -> r
-                     * 01b - r -> abs(r)
-                     * 10b - r -> -abs(r)
-                     * 11b - r -> -r
-                     */
-                    int sign = negative ? ~(y & 0x1) : (y & 0x2) >> 1;
-                    r |= sign << 31;
-                    wrAccAndR(dsp, instr.getRegR(), r);
-                }
-                case Opcodes.EXP: {
-                    // A is logarithmic input, X is max_exp, Y is sign_reg
-                    boolean sign = a < 0;
-                    int log = a & 0x7fffffff;
-                    /*
-                     * Ok, we can't recover the sign, so we can't reverse
-                     * the sign_reg transformation. Soo... let's do it forward again!
-                     */
-                    boolean negative = sign ? ((y & 0x1) == 0) : ((y & 0x2) == 2);
-                    int expbits = expBits(x);
-                    int linbits = 31 - expbits;
-                    int exp = log >>> linbits;
-                    int lin = log & ((1 << linbits) - 1);
-                    lin = lin << expbits + 1;
-                    if (exp == 0) {
-                        exp += 1;
-                    } else {
-                        lin = lin >>> 1;
-                        lin |= 0x80000000;
-                    }
-                    int shifts = x - exp;
-                    lin = lin >>> shifts;
-                    r = negative ? -lin : lin;
-                    wrAccAndR(dsp, instr.getRegR(), r);
-                }
-                break;
                 case Opcodes.INTERP:
-                    acc = la + (lx * (ly - la) >> 31);
-                    wrAccAndR(dsp, instr.getRegR(), acc);
+                    acc = Alu.interp(la, x, y);
+                    accu.write(acc);
+                    r = (int) acc;
+                    saturate = false;
                     break;
                 case Opcodes.SKIP:
-                    // TODO: This is complicated, but we should implement it one day.
+                    // A is the flags to test (usually CCR), X the test, Y the count
+                    dsp.writeMemDsp(regR, a);
+                    if (Alu.skip(a, x)) {
+                        pc = skips.target(pc, y) - 1;
+                    }
+                    continue;
+                default:
+                    r = op(Microcode.opcode(word), la, x, y);
+                    accu.write(r);
+                    mac = false;
                     break;
             }
+            dsp.writeMemDsp(regR, r);
+            if (ccr) {
+                dsp.writeCcr(mac ? Alu.flags(r, accu.getHigh(), accu.getLow(), saturate) : Alu.flags(r));
+            }
         }
     }
 
-    private static int expBits(int maxExp) {
-        int expbits = 0;
-        while (maxExp > 0) {
-            maxExp = maxExp >>> 1;
-            ++expbits;
-        }
-        return expbits;
-    }
-
-    private static void wrAccAndR(DSP dsp, short regR, long acc) {
-        dsp.writeMemDsp(regR, (int) acc);
-        dsp.writeAccu(acc);
-    }
-
-    private static void wrAccAndR(DSP dsp, short regR, int r) {
-        dsp.writeMemDsp(regR, r);
-        dsp.writeAccu(r);
-    }
-
-    private static void mac(long acc, DSP dsp, short regR, long x, long y, int shift, boolean neg, boolean sat) {
-        if (neg) {
-            x = -x;
+    /**
+     * Evaluates one of the opcodes whose int result is both R and the new
+     * accumulator.
+     */
+    private static int op(int opcode, long la, int x, int y) {
+        switch (opcode) {
+            case Opcodes.ANDXOR:
+                // Even if A is accu, the higher bits will be zero after
+                // anding with X, so don't bother with longs
+                return Alu.andxor((int) la, x, y);
+            case Opcodes.TESTNEG:
+                return Alu.testneg(la, x, y);
+            case Opcodes.LIMIT:
+                return Alu.limit(la, x, y);
+            case Opcodes.LIMITL:
+                return Alu.limitl(la, x, y);
+            case Opcodes.LOG:
+                return Alu.log(la, x, y);
+            case Opcodes.EXP:
+                return Alu.exp((int) la, x, y);
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + opcode);
         }
-        acc += (x * y) >> shift;
-        dsp.writeMemDsp(regR, (int) (sat ? clamp(acc) : acc));
-        dsp.writeAccu(acc);
     }
 
-    private static long clamp(long x) {
-        if (x > MAX_VALUE) {
-            return MAX_VALUE;
-        } else if (x < MIN_VALUE) {
-            return MIN_VALUE;
+    /**
+     * Adds the term to A. If A is the accumulator, the sum is computed on all
+     * of its 67 bits, instead of the saturated value passed as la.
+     */
+    private static void mac(Accumulator accu, boolean aIsAccu, long la, long term) {
+        if (!aIsAccu) {
+            accu.write(la);
         }
-        return x;
+        accu.add(term);
     }
 
     private static long gprOrAcc(short addr, DSP dsp) {
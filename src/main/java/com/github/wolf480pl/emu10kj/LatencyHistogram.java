@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds, with buckets that grow with the
+ * value (like HdrHistogram), so that it has a fixed size and a fixed relative
+ * precision of 1/16 over the whole range of a long.
+ * <p>
+ * Values are recorded by a single thread without locking or allocating, and
+ * can be read from any thread.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * HALF + SUB_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Must only be called by one thread at a time.
+     */
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Records a value <code>times</code> times at once. Must only be called by
+     * one thread at a time.
+     */
+    public void record(long nanos, int times) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int idx = index(nanos);
+        counts.lazySet(idx, counts.get(idx) + times);
+        count.lazySet(count.get() + times);
+        sum.lazySet(sum.get() + nanos * times);
+        if (nanos > max.get()) {
+            max.lazySet(nanos);
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the largest value that's in the same bucket as the value below
+     *         which <code>percentile</code>% of the recorded values are
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets all the recorded values. Values recorded concurrently may be
+     * partially lost.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); ++i) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int index(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * The largest value that falls into the bucket.
+     */
+    private static long highest(int idx) {
+        if (idx < SUB_COUNT) {
+            return idx;
+        }
+        int shift = idx / HALF - 1;
+        long lowest = (long) (idx - shift * HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
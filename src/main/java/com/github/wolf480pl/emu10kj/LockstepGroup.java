@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import gnu.trove.map.TShortObjectMap;
+import gnu.trove.map.TShortShortMap;
+import gnu.trove.map.hash.TShortObjectHashMap;
+
+/**
+ * Runs one program on many DSPs in lockstep: each instruction is executed
+ * for all of them before moving on to the next one.
+ * <p>
+ * Values are kept structure-of-arrays: every address the program uses gets
+ * a row with one lane per DSP, and every instruction is a loop over the
+ * lanes with no dispatch inside, which the JIT can unroll and vectorize.
+ * GPRs are copied into their rows at the beginning of each block and back at
+ * the end, so the host can change parameters of each DSP between blocks as
+ * usual. Everything else (IO, TRAM, system registers) is gathered from and
+ * scattered to the DSPs' own {@link Operand}s on every access.
+ * <p>
+ * Programs that use SKIP or read CCR, whose control flow could differ between
+ * the DSPs, fall back to running each DSP on its own with a scalar
+ * {@link Engine}.
+ * <p>
+ * The DSPs belong to the group for good. Their programs can only be swapped
+ * with {@link #swapProgram}, which swaps all of them at the same block
+ * boundary, so that they never run different programs.
+ */
+public class LockstepGroup {
+    private final Emu10k1[] dsps;
+    private final int lanes;
+    private volatile Plan plan;
+    private final AtomicReference<Plan> pendingSwap = new AtomicReference<>();
+    private final long[] low;
+    private final int[] high;
+    private final long[] terms;
+
+    public LockstepGroup(Program program, Emu10k1... dsps) {
+        this(program, new ThreadedEngine(), dsps);
+    }
+
+    /**
+     * Loads the program into all the DSPs.
+     *
+     * @param fallback the engine to bind the program with on each DSP, used
+     *        when it can't run in lockstep
+     * @throws IllegalArgumentException if one of the DSPs already belongs to
+     *         a group
+     */
+    public LockstepGroup(Program program, Engine fallback, Emu10k1... dsps) {
+        this.dsps = dsps.clone();
+        this.lanes = dsps.length;
+        this.low = new long[lanes];
+        this.high = new int[lanes];
+        this.terms = new long[lanes];
+        for (Emu10k1 dsp : dsps) {
+            if (dsp.grouped) {
+                throw new IllegalArgumentException("DSP already belongs to a LockstepGroup");
+            }
+        }
+        for (Emu10k1 dsp : dsps) {
+            dsp.grouped = true;
+            dsp.loadProgram(program, fallback);
+        }
+        this.plan = plan(program, null);
+    }
+
+    /**
+     * Translates the program into steps over the lanes, unless it has to run
+     * on each DSP on its own.
+     */
+    private Plan plan(Program program, Emu10k1.Swap[] swaps) {
+        Instruction[] code = program.getInstructions();
+        SkipTable skips = new SkipTable(code);
+        if (skips.hasSkips() || skips.readsCcr()) {
+            return new Plan(null, null, swaps);
+        }
+
+        TShortObjectMap<Row> rows = new TShortObjectHashMap<>();
+        Step[] steps = new Step[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            Instruction instr = code[i];
+            Row a = instr.getRegA() == Emu10k1.ACCU ? null : row(rows, instr.getRegA());
+            steps[i] = new Step(instr.getOpcode(), row(rows, instr.getRegR()), a, row(rows, instr.getRegX()),
+                    row(rows, instr.getRegY()));
+        }
+        int count = 0;
+        for (Row row : rows.valueCollection()) {
+            if (row instanceof GprRow) {
+                ++count;
+            }
+        }
+        GprRow[] gprs = new GprRow[count];
+        for (Row row : rows.valueCollection()) {
+            if (row instanceof GprRow) {
+                gprs[--count] = (GprRow) row;
+            }
+        }
+        return new Plan(steps, gprs, swaps);
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Whether the program couldn't be run in lockstep, and each DSP runs it
+     * on its own.
+     */
+    public boolean isScalar() {
+        return plan.steps == null;
+    }
+
+    /**
+     * Replaces the program of all the DSPs at the start of the next block,
+     * as {@link Emu10k1#swapProgram(Program, Engine, TShortShortMap)} would
+     * for each of them. The program is bound to each DSP, and translated for
+     * running in lockstep, on the calling thread.
+     * A swap that hasn't happened yet is replaced by a later one.
+     */
+    public void swapProgram(Program program, Engine fallback, TShortShortMap migration) {
+        Emu10k1.Swap[] swaps = new Emu10k1.Swap[lanes];
+        for (int l = 0; l < lanes; ++l) {
+            swaps[l] = dsps[l].prepareSwap(program, fallback, migration);
+        }
+        pendingSwap.set(plan(program, swaps));
+    }
+
+    public void swapProgram(Program program, Engine fallback) {
+        swapProgram(program, fallback, null);
+    }
+
+    /**
+     * Whether a program passed to {@link #swapProgram} is still waiting for
+     * the next block.
+     */
+    public boolean isSwapPending() {
+        return pendingSwap.get() != null;
+    }
+
+    public void tick() {
+        tickBlock(1);
+    }
+
+    public void tickBlock(int frames) {
+        if (pendingSwap.get() != null) {
+            Plan next = pendingSwap.getAndSet(null);
+            for (int l = 0; l < lanes; ++l) {
+                dsps[l].applySwap(next.swaps[l]);
+            }
+            plan = next;
+        }
+        Plan plan = this.plan;
+        if (plan.steps == null) {
+            for (Emu10k1 dsp : dsps) {
+                dsp.tickBlock(frames);
+            }
+            return;
+        }
+        Step[] steps = plan.steps;
+        GprRow[] gprs = plan.gprs;
+        for (int l = 0; l < lanes; ++l) {
+            Emu10k1 dsp = dsps[l];
+            low[l] = dsp.accumulator().getLow();
+            high[l] = dsp.accumulator().getHigh();
+            dsp.beginBlock(frames);
+        }
+        for (GprRow row : gprs) {
+            row.load();
+        }
+        for (int f = 0; f < frames; ++f) {
+            for (Emu10k1 dsp : dsps) {
+                dsp.beginFrame(f);
+            }
+            for (Step step : steps) {
+                step.exec(low, high, terms, lanes);
+            }
+            for (Emu10k1 dsp : dsps) {
+                dsp.endFrame();
+            }
+        }
+        for (GprRow row : gprs) {
+            row.store();
+        }
+        for (int l = 0; l < lanes; ++l) {
+            Emu10k1 dsp = dsps[l];
+            dsp.accumulator().write(high[l], low[l]);
+            dsp.endBlock(frames);
+        }
+    }
+
+    private Row row(TShortObjectMap<Row> rows, short addr) {
+        Row row = rows.get(addr);
+        if (row == null) {
+            if (addr >= Emu10k1.GPR_START && addr <= Emu10k1.GPR_END) {
+                row = new GprRow(dsps, addr - Emu10k1.GPR_START);
+            } else if (addr >= Emu10k1.CONST_START && addr <= Emu10k1.CONST_END) {
+                row = new ConstRow(lanes, Emu10k1.CONSTANTS.get((short) (addr - Emu10k1.CONST_START)));
+            } else {
+                Operand[] ops = new Operand[lanes];
+                for (int l = 0; l < lanes; ++l) {
+                    ops[l] = dsps[l].operand(addr);
+                }
+                row = new OperandRow(ops);
+            }
+            rows.put(addr, row);
+        }
+        return row;
+    }
+
+    /**
+     * How to run one program: its steps and the rows of the GPRs it uses, or
+     * nulls if it runs on each DSP on its own. A swapped-in plan also carries
+     * the swaps that put the program on each DSP.
+     */
+    private static final class Plan {
+        final Step[] steps;
+        final GprRow[] gprs;
+        final Emu10k1.Swap[] swaps;
+
+        Plan(Step[] steps, GprRow[] gprs, Emu10k1.Swap[] swaps) {
+            this.steps = steps;
+            this.gprs = gprs;
+            this.swaps = swaps;
+        }
+    }
+
+    /**
+     * The values of one address in every lane.
+     */
+    private abstract static class Row {
+
+        /**
+         * @return the current values
+         */
+        abstract int[] read();
+
+        /**
+         * @return the array to put the values to write in
+         */
+        abstract int[] target();
+
+        /**
+         * Writes the values put in {@link #target()}.
+         */
+        void commit() {
+        }
+    }
+
+    private static final class ConstRow extends Row {
+        private final int[] values;
+        private final int[] discard;
+
+        ConstRow(int lanes, int value) {
+            values = new int[lanes];
+            discard = new int[lanes];
+            Arrays.fill(values, value);
+        }
+
+        @Override
+        int[] read() {
+            return values;
+        }
+
+        @Override
+        int[] target() {
+            return discard;
+        }
+    }
+
+    private static final class GprRow extends Row {
+        private final Emu10k1[] dsps;
+        private final int idx;
+        private final int[] values;
+
+        GprRow(Emu10k1[] dsps, int idx) {
+            this.dsps = dsps;
+            this.idx = idx;
+            this.values = new int[dsps.length];
+        }
+
+        void load() {
+            for (int l = 0; l < values.length; ++l) {
+                values[l] = dsps[l].gprArray()[idx];
+            }
+        }
+
+        void store() {
+            for (int l = 0; l < values.length; ++l) {
+                dsps[l].gprArray()[idx] = values[l];
+            }
+        }
+
+        @Override
+        int[] read() {
+            return values;
+        }
+
+        @Override
+        int[] target() {
+            return values;
+        }
+    }
+
+    private static final class OperandRow extends Row {
+        private final Operand[] ops;
+        private final int[] values;
+
+        OperandRow(Operand[] ops) {
+            this.ops = ops;
+            this.values = new int[ops.length];
+        }
+
+        @Override
+        int[] read() {
+            for (int l = 0; l < ops.length; ++l) {
+                values[l] = ops[l].read();
+            }
+            return values;
+        }
+
+        @Override
+        int[] target() {
+            return values;
+        }
+
+        @Override
+        void commit() {
+            for (int l = 0; l < ops.length; ++l) {
+                ops[l].write(values[l]);
+            }
+        }
+    }
+
+    /**
+     * One instruction, executed on all lanes.
+     */
+    private static final class Step {
+        private final byte opcode;
+        private final Row r, a, x, y;
+
+        /**
+         * @param a the A row, or null if A is the accumulator
+         */
+        Step(byte opcode, Row r, Row a, Row x, Row y) {
+            this.opcode = opcode;
+            this.r = r;
+            this.a = a;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * @param terms scratch space for one long per lane
+         */
+        void exec(long[] low, int[] high, long[] terms, int lanes) {
+            int[] av = a == null ? null : a.read();
+            int[] xv = x.read();
+            int[] yv = y.read();
+            int[] rv = r.target();
+            switch (opcode) {
+                case Opcodes.MACS:
+                case Opcodes.MACSN:
+                case Opcodes.MACW:
+                case Opcodes.MACWN:
+                case Opcodes.MACINTS:
+                case Opcodes.MACINTW:
+                case Opcodes.ACC3:
+                    mac(rv, av, xv, yv, low, high, terms, lanes);
+                    break;
+                case Opcodes.MACMV:
+                    for (int l = 0; l < lanes; ++l) {
+                        int res = av == null ? (int) Accumulator.saturate(high[l], low[l]) : av[l];
+                        long term = Alu.macints(xv[l], yv[l]);
+                        long sum = low[l] + term;
+                        high[l] = Accumulator.addHigh(high[l], low[l], term, sum);
+                        low[l] = sum;
+                        rv[l] = res;
+                    }
+                    break;
+                case Opcodes.INTERP:
+                    for (int l = 0; l < lanes; ++l) {
+                        long acc = Alu.interp(a(av, low, high, l), xv[l], yv[l]);
+                        low[l] = acc;
+                        high[l] = (int) (acc >> 63);
+                        rv[l] = (int) acc;
+                    }
+                    break;
+                default:
+                    op(rv, av, xv, yv, low, high, lanes);
+                    break;
+            }
+            r.commit();
+        }
+
+        private static long a(int[] av, long[] low, int[] high, int l) {
+            return av == null ? Accumulator.saturate(high[l], low[l]) : av[l];
+        }
+
+        private void mac(int[] rv, int[] av, int[] xv, int[] yv, long[] low, int[] high, long[] terms,
+                int lanes) {
+            switch (opcode) {
+                case Opcodes.MACS:
+                case Opcodes.MACW:
+                    for (int l = 0; l < lanes; ++l) {
+                        terms[l] = (long) xv[l] * yv[l] >> 31;
+                    }
+                    break;
+                case Opcodes.MACSN:
+                case Opcodes.MACWN:
+                    for (int l = 0; l < lanes; ++l) {
+                        terms[l] = -(long) xv[l] * yv[l] >> 31;
+                    }
+                    break;
+                case Opcodes.ACC3:
+                    for (int l = 0; l < lanes; ++l) {
+                        terms[l] = (long) xv[l] + yv[l];
+                    }
+                    break;
+                default:
+                    for (int l = 0; l < lanes; ++l) {
+                        terms[l] = (long) xv[l] * yv[l];
+                    }
+                    break;
+            }
+            if (av == null) {
+                for (int l = 0; l < lanes; ++l) {
+                    long sum = low[l] + terms[l];
+                    high[l] = Accumulator.addHigh(high[l], low[l], terms[l], sum);
+                    low[l] = sum;
+                }
+            } else {
+                // An int plus a product of two ints can't overflow a long
+                for (int l = 0; l < lanes; ++l) {
+                    low[l] = av[l] + terms[l];
+                    high[l] = (int) (low[l] >> 63);
+                }
+            }
+            if (opcode == Opcodes.MACS || opcode == Opcodes.MACSN || opcode == Opcodes.MACINTS
+                    || opcode == Opcodes.ACC3) {
+                for (int l = 0; l < lanes; ++l) {
+                    rv[l] = Accumulator.clamp(high[l], low[l]);
+                }
+            } else {
+                for (int l = 0; l < lanes; ++l) {
+                    rv[l] = (int) low[l];
+                }
+            }
+        }
+
+        private void op(int[] rv, int[] av, int[] xv, int[] yv, long[] low, int[] high, int lanes) {
+            switch (opcode) {
+                case Opcodes.ANDXOR:
+                    for (int l = 0; l < lanes; ++l) {
+                        rv[l] = Alu.andxor((int) a(av, low, high, l), xv[l], yv[l]);
+                    }
+                    break;
+                case Opcodes.TESTNEG:
+                    for (int l = 0; l < lanes; ++l) {
+                        rv[l] = Alu.testneg(a(av, low, high, l), xv[l], yv[l]);
+                    }
+                    break;
+                case Opcodes.LIMIT:
+                    for (int l = 0; l < lanes; ++l) {
+                        rv[l] = Alu.limit(a(av, low, high, l), xv[l], yv[l]);
+                    }
+                    break;
+                case Opcodes.LIMITL:
+                    for (int l = 0; l < lanes; ++l) {
+                        rv[l] = Alu.limitl(a(av, low, high, l), xv[l], yv[l]);
+                    }
+                    break;
+                case Opcodes.LOG:
+                    for (int l = 0; l < lanes; ++l) {
+                        rv[l] = Alu.log(a(av, low, high, l), xv[l], yv[l]);
+                    }
+                    break;
+                case Opcodes.EXP:
+                    for (int l = 0; l < lanes; ++l) {
+                        rv[l] = Alu.exp((int) a(av, low, high, l), xv[l], yv[l]);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + opcode);
+            }
+            // The result is both R and the new accumulator
+            for (int l = 0; l < lanes; ++l) {
+                low[l] = rv[l];
+                high[l] = rv[l] >> 31;
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Program code packed one instruction per <code>long</code>, in the emu10k1
+ * fx8010 instruction word layout.
+ * <p>
+ * The low 32 bits hold <code>X &lt;&lt; 10 | Y</code> and the high 32 bits hold
+ * <code>opcode &lt;&lt; 20 | R &lt;&lt; 10 | A</code>. The card stores each
+ * instruction as the low word followed by the high word, both little endian,
+ * so a raw microcode dump is just an array of little endian longs.
+ */
+public final class Microcode {
+    public static final int INSTR_BYTES = 8;
+    public static final int ADDR_BITS = 10;
+    public static final int ADDR_MASK = (1 << ADDR_BITS) - 1;
+
+    private static final int Y_SHIFT = 0;
+    private static final int X_SHIFT = 10;
+    private static final int A_SHIFT = 32;
+    private static final int R_SHIFT = 42;
+    private static final int OP_SHIFT = 52;
+
+    private final long[] words;
+
+    // Keeps the array, so it is only called with new ones, by of() and load()
+    private Microcode(long[] words) {
+        this.words = words;
+    }
+
+    public int length() {
+        return words.length;
+    }
+
+    public long get(int idx) {
+        return words[idx];
+    }
+
+    /**
+     * Returns the backing array, which must not be modified.
+     */
+    long[] words() {
+        return words;
+    }
+
+    public Instruction getInstruction(int idx) {
+        return decode(words[idx]);
+    }
+
+    public Instruction[] toInstructions() {
+        Instruction[] code = new Instruction[words.length];
+        for (int i = 0; i < code.length; ++i) {
+            code[i] = decode(words[i]);
+        }
+        return code;
+    }
+
+    /**
+     * Writes the raw microcode to <code>buf</code>, in the card's byte order.
+     */
+    public void write(ByteBuffer buf) {
+        buf.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(words);
+        buf.position(buf.position() + words.length * INSTR_BYTES);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Microcode && Arrays.equals(words, ((Microcode) obj).words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+
+    public static Microcode of(Instruction[] code) {
+        long[] words = new long[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            words[i] = encode(code[i]);
+        }
+        return new Microcode(words);
+    }
+
+    /**
+     * Reads the remaining bytes of <code>buf</code> as a raw microcode dump.
+     */
+    public static Microcode load(ByteBuffer buf) {
+        if (buf.remaining() % INSTR_BYTES != 0) {
+            throw new IllegalArgumentException("Microcode size is not a multiple of " + INSTR_BYTES + ": " + buf.remaining());
+        }
+        LongBuffer longs = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        long[] words = new long[longs.remaining()];
+        longs.get(words);
+        buf.position(buf.limit());
+        return new Microcode(words);
+    }
+
+    public static Microcode load(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return load(buf);
+        }
+    }
+
+    public static long encode(Instruction instr) {
+        return encode(instr.getOpcode(), instr.getRegR(), instr.getRegA(), instr.getRegX(), instr.getRegY());
+    }
+
+    public static long encode(byte opcode, short regR, short regA, short regX, short regY) {
+        if ((opcode & ~0xf) != 0) {
+            throw new IllegalArgumentException("Invalid opcode: " + opcode);
+        }
+        return (long) opcode << OP_SHIFT | (long) checkAddr(regR) << R_SHIFT | (long) checkAddr(regA) << A_SHIFT
+                | (long) checkAddr(regX) << X_SHIFT | (long) checkAddr(regY) << Y_SHIFT;
+    }
+
+    public static Instruction decode(long word) {
+        return new Instruction(opcode(word), regR(word), regA(word), regX(word), regY(word));
+    }
+
+    public static byte opcode(long word) {
+        return (byte) ((word >>> OP_SHIFT) & 0xf);
+    }
+
+    public static short regR(long word) {
+        return (short) ((word >>> R_SHIFT) & ADDR_MASK);
+    }
+
+    public static short regA(long word) {
+        return (short) ((word >>> A_SHIFT) & ADDR_MASK);
+    }
+
+    public static short regX(long word) {
+        return (short) ((word >>> X_SHIFT) & ADDR_MASK);
+    }
+
+    public static short regY(long word) {
+        return (short) ((word >>> Y_SHIFT) & ADDR_MASK);
+    }
+
+    private static int checkAddr(short addr) {
+        if ((addr & ~ADDR_MASK) != 0) {
+            throw new IllegalArgumentException("Address out of range: " + addr);
+        }
+        return addr;
+    }
+}
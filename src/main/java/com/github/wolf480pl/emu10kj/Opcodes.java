@@ -35,7 +35,16 @@ public class Opcodes {
     public static final byte INTERP = 0xe;
     public static final byte SKIP = 0xf;
 
+    public static final int COUNT = 16;
+
+    private static final String[] NAMES = { "MACS", "MACSN", "MACW", "MACWN", "MACINTS", "MACINTW", "ACC3", "MACMV",
+            "ANDXOR", "TESTNEG", "LIMIT", "LIMITL", "LOG", "EXP", "INTERP", "SKIP" };
+
     private Opcodes() {
     }
 
+    public static String name(int opcode) {
+        return NAMES[opcode];
+    }
+
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * A single DSP memory location, resolved once so that reading or writing it
+ * doesn't need to walk the address space tree again.
+ */
+public abstract class Operand {
+
+    public abstract int read();
+
+    public abstract void write(int value);
+
+    public static Operand constant(int value) {
+        return new ConstOperand(value);
+    }
+
+    public static Operand array(int[] backend, int idx) {
+        return new ArrayOperand(backend, idx);
+    }
+
+    public static Operand space(AddressSpace space, int addr) {
+        return new SpaceOperand(space, addr);
+    }
+
+    /**
+     * Walks down the {@link SplitAddressSpace}s to the leaf space that
+     * <code>addr</code> ends up in, and picks the cheapest way to access it.
+     */
+    public static Operand resolve(AddressSpace space, int addr) {
+        while (space instanceof SplitAddressSpace) {
+            SplitAddressSpace split = (SplitAddressSpace) space;
+            space = split.subspace(addr);
+            addr = split.subaddress(addr);
+        }
+        if (space instanceof ArrayAddressSpace) {
+            int[] data = ((ArrayAddressSpace) space).array();
+            if (addr >= data.length) {
+                // ArrayAddressSpace defaults to zero if out of bounds
+                return constant(0);
+            }
+            return array(data, addr);
+        }
+        if (space instanceof TramSpace) {
+            TramSpace tram = (TramSpace) space;
+            if (addr >= tram.getLineCount()) {
+                return constant(0);
+            }
+            return new TramOperand(tram, addr);
+        }
+        return space(space, addr);
+    }
+
+    public static final class ConstOperand extends Operand {
+        private final int value;
+
+        public ConstOperand(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int read() {
+            return value;
+        }
+
+        @Override
+        public void write(int value) {
+            // No writing to constants, baka!
+        }
+    }
+
+    public static final class ArrayOperand extends Operand {
+        private final int[] data;
+        private final int idx;
+
+        public ArrayOperand(int[] data, int idx) {
+            this.data = data;
+            this.idx = idx;
+        }
+
+        @Override
+        public int read() {
+            return data[idx];
+        }
+
+        @Override
+        public void write(int value) {
+            data[idx] = value;
+        }
+    }
+
+    public static final class TramOperand extends Operand {
+        private final TramSpace space;
+        private final int line;
+
+        public TramOperand(TramSpace space, int line) {
+            this.space = space;
+            this.line = line;
+        }
+
+        @Override
+        public int read() {
+            return space.readLine(line);
+        }
+
+        @Override
+        public void write(int value) {
+            space.writeLine(line, value);
+        }
+    }
+
+    public static final class SpaceOperand extends Operand {
+        private final AddressSpace space;
+        private final int addr;
+
+        public SpaceOperand(AddressSpace space, int addr) {
+            this.space = space;
+            this.addr = addr;
+        }
+
+        @Override
+        public int read() {
+            return space.read(addr);
+        }
+
+        @Override
+        public void write(int value) {
+            space.write(addr, value);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import gnu.trove.map.TShortIntMap;
+import gnu.trove.map.hash.TShortIntHashMap;
+import gnu.trove.set.TShortSet;
+import gnu.trove.set.hash.TShortHashSet;
+
+/**
+ * Rewrites a program into a shorter one that behaves the same, before it's
+ * given to an {@link Engine}:
+ * <ul>
+ * <li>instructions whose inputs are all hardware constants are evaluated
+ * ahead of time, and if their result goes to a private GPR, it becomes that
+ * GPR's initial value instead,</li>
+ * <li>writes to read-only system registers are dropped,</li>
+ * <li>instructions whose R and accumulator are both dead (this includes the
+ * usual <code>MACS C_0, C_0, C_0, C_0</code> padding) are removed.</li>
+ * </ul>
+ * The program runs once per tick, so liveness wraps around from the last
+ * instruction to the first one. GPRs are assumed to be read by the host
+ * between ticks, unless they are declared private. The accumulator is only
+ * considered as seen by the program itself.
+ * <p>
+ * Programs that use SKIP or read CCR are returned unchanged, as removing
+ * instructions would change where they jump to or what flags they see.
+ */
+public class Optimizer {
+    private static final short C_0 = Emu10k1.CONST_START;
+
+    private final TShortSet privateGprs;
+
+    public Optimizer() {
+        this(new TShortHashSet());
+    }
+
+    /**
+     * @param privateGprs addresses of GPRs that only the program itself uses
+     */
+    public Optimizer(TShortSet privateGprs) {
+        this.privateGprs = new TShortHashSet(privateGprs);
+    }
+
+    /**
+     * @return the optimized program, or <code>program</code> itself if
+     *         nothing could be optimized
+     */
+    public Program optimize(Program program) {
+        Instruction[] code = program.getInstructions();
+        if (code.length == 0 || !optimizable(code)) {
+            return program;
+        }
+        TShortIntMap init = new TShortIntHashMap(program.getInitialValues());
+        boolean changed = fold(code, init);
+
+        boolean[] keep = removeDead(code);
+        List<Instruction> kept = new ArrayList<>(code.length);
+        for (int i = 0; i < code.length; ++i) {
+            if (keep[i]) {
+                kept.add(code[i]);
+            }
+        }
+        if (!changed && kept.size() == code.length) {
+            return program;
+        }
+        return new InterpretedProgram(Microcode.of(kept.toArray(new Instruction[kept.size()])),
+                program.getGPRCount(), program.getItramSize(), program.getXtramSize(), init);
+    }
+
+    private static boolean optimizable(Instruction[] code) {
+        for (Instruction instr : code) {
+            if (instr.getOpcode() == Opcodes.SKIP || instr.getRegA() == Emu10k1.CCR
+                    || instr.getRegX() == Emu10k1.CCR || instr.getRegY() == Emu10k1.CCR) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates the instructions that only read constants, replacing them in
+     * <code>code</code>.
+     *
+     * @return whether anything was replaced
+     */
+    private boolean fold(Instruction[] code, TShortIntMap init) {
+        boolean changed = false;
+        Accumulator acc = new Accumulator();
+        for (int i = 0; i < code.length; ++i) {
+            Instruction instr = code[i];
+            if (readsAccu(instr) || !isConst(instr.getRegA()) || !isConst(instr.getRegX())
+                    || !isConst(instr.getRegY())) {
+                continue;
+            }
+            int r = evaluate(instr, acc);
+            short regR = instr.getRegR();
+            if (privateGprs.contains(regR) && isOnlyWriter(code, i) && !isReadBefore(code, i, regR)) {
+                init.put(regR, r);
+                regR = C_0;
+                changed = true;
+            }
+            short constant = constantAddress(r);
+            if (constant >= 0 && acc.isNarrow() && acc.getLow() == r && !isLoad(instr, constant)) {
+                // Cheapest way to load the result into both R and the accumulator
+                instr = new Instruction(Opcodes.ACC3, regR, constant, C_0, C_0);
+            } else if (regR != instr.getRegR()) {
+                instr = new Instruction(instr.getOpcode(), regR, instr.getRegA(), instr.getRegX(), instr.getRegY());
+            }
+            if (instr != code[i]) {
+                code[i] = instr;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Computes R and the accumulator of an instruction that doesn't read the
+     * accumulator, given the values of its operands.
+     */
+    private static int evaluate(Instruction instr, Accumulator acc) {
+        int a = constant(instr.getRegA());
+        int x = constant(instr.getRegX());
+        int y = constant(instr.getRegY());
+        int r;
+        switch (instr.getOpcode()) {
+            case Opcodes.MACS:
+                acc.write(a);
+                acc.add(Alu.macs(x, y));
+                return acc.clamp();
+            case Opcodes.MACSN:
+                acc.write(a);
+                acc.add(Alu.macsn(x, y));
+                return acc.clamp();
+            case Opcodes.MACW:
+                acc.write(a);
+                acc.add(Alu.macs(x, y));
+                return (int) acc.getLow();
+            case Opcodes.MACWN:
+                acc.write(a);
+                acc.add(Alu.macsn(x, y));
+                return (int) acc.getLow();
+            case Opcodes.MACINTS:
+                acc.write(a);
+                acc.add(Alu.macints(x, y));
+                return acc.clamp();
+            case Opcodes.MACINTW:
+                acc.write(a);
+                acc.add(Alu.macints(x, y));
+                return (int) acc.getLow();
+            case Opcodes.ACC3:
+                acc.write(a);
+                acc.add(x);
+                acc.add(y);
+                return acc.clamp();
+            case Opcodes.ANDXOR:
+                r = Alu.andxor(a, x, y);
+                break;
+            case Opcodes.TESTNEG:
+                r = Alu.testneg(a, x, y);
+                break;
+            case Opcodes.LIMIT:
+                r = Alu.limit(a, x, y);
+                break;
+            case Opcodes.LIMITL:
+                r = Alu.limitl(a, x, y);
+                break;
+            case Opcodes.LOG:
+                r = Alu.log(a, x, y);
+                break;
+            case Opcodes.EXP:
+                r = Alu.exp(a, x, y);
+                break;
+            case Opcodes.INTERP:
+                long interp = Alu.interp(a, x, y);
+                acc.write(interp);
+                return (int) interp;
+            default:
+                throw new IllegalArgumentException("Can't evaluate opcode " + instr.getOpcode());
+        }
+        acc.write(r);
+        return r;
+    }
+
+    /**
+     * Marks the instructions that have to stay. An instruction can go if the
+     * value it writes to R is never read (or R is read-only), and the next
+     * instruction doesn't read the accumulator.
+     */
+    private boolean[] removeDead(Instruction[] code) {
+        boolean[] keep = new boolean[code.length];
+        // Private GPRs live at the end of the tick are those read before
+        // being written in the next one. Find that set by iterating from
+        // none until it stops growing.
+        TShortSet liveOut = new TShortHashSet();
+        while (true) {
+            TShortSet live = new TShortHashSet();
+            for (short gpr = Emu10k1.GPR_START; gpr <= Emu10k1.GPR_END; ++gpr) {
+                if (!privateGprs.contains(gpr) || liveOut.contains(gpr)) {
+                    live.add(gpr);
+                }
+            }
+            boolean accuLive = readsAccu(code[0]);
+            for (int i = code.length - 1; i >= 0; --i) {
+                Instruction instr = code[i];
+                short regR = instr.getRegR();
+                keep[i] = accuLive || (isGpr(regR) ? live.contains(regR) : !isReadOnly(regR));
+                if (keep[i]) {
+                    live.remove(regR);
+                    addRead(live, instr.getRegA());
+                    addRead(live, instr.getRegX());
+                    addRead(live, instr.getRegY());
+                    accuLive = readsAccu(instr);
+                }
+            }
+            live.retainAll(privateGprs);
+            if (live.equals(liveOut)) {
+                return keep;
+            }
+            liveOut = live;
+        }
+    }
+
+    private static void addRead(TShortSet live, short addr) {
+        if (isGpr(addr)) {
+            live.add(addr);
+        }
+    }
+
+    private static boolean isLoad(Instruction instr, short constant) {
+        return instr.getOpcode() == Opcodes.ACC3 && instr.getRegA() == constant
+                && instr.getRegX() == C_0 && instr.getRegY() == C_0;
+    }
+
+    private static boolean readsAccu(Instruction instr) {
+        return instr.getRegA() == Emu10k1.ACCU || instr.getOpcode() == Opcodes.MACMV;
+    }
+
+    private static boolean isOnlyWriter(Instruction[] code, int idx) {
+        for (int i = 0; i < code.length; ++i) {
+            if (i != idx && code[i].getRegR() == code[idx].getRegR()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isReadBefore(Instruction[] code, int idx, short addr) {
+        for (int i = 0; i < idx; ++i) {
+            if (code[i].getRegA() == addr || code[i].getRegX() == addr || code[i].getRegY() == addr) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isGpr(short addr) {
+        return addr >= Emu10k1.GPR_START && addr <= Emu10k1.GPR_END;
+    }
+
+    private static boolean isConst(short addr) {
+        return addr >= Emu10k1.CONST_START && addr <= Emu10k1.CONST_END;
+    }
+
+    /**
+     * Whether writes to the address are ignored: the constants, ACCU, CCR,
+     * the noise generators and the reserved system registers.
+     */
+    private static boolean isReadOnly(short addr) {
+        return addr >= Emu10k1.CONST_START && addr < Emu10k1.GPR_START
+                && addr != Emu10k1.INTERRUPT && addr != Emu10k1.DBAC;
+    }
+
+    private static int constant(short addr) {
+        return Emu10k1.CONSTANTS.get((short) (addr - Emu10k1.CONST_START));
+    }
+
+    /**
+     * @return the address of the hardware constant equal to value, or -1
+     */
+    private static short constantAddress(int value) {
+        short idx = Emu10k1.CONSTANTS.find(value);
+        return idx < 0 ? -1 : (short) (Emu10k1.CONST_START + idx);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Release stores and acquire loads on off-heap memory, e.g. a mapped file
+ * shared with another process, which plain {@link ByteBuffer} accesses don't
+ * order.
+ * <p>
+ * Java 7 has no public API for that, so this goes through
+ * <code>sun.misc.Unsafe</code>. It's looked up reflectively and called
+ * through constant method handles, which the JIT inlines like direct calls.
+ * Values are in native byte order, at absolute addresses.
+ */
+final class OrderedMemory {
+    private static final Object UNSAFE;
+    private static final MethodHandle GET_LONG_VOLATILE;
+    private static final MethodHandle PUT_ORDERED_LONG;
+    private static final MethodHandle GET_INT_VOLATILE;
+    private static final MethodHandle PUT_ORDERED_INT;
+    private static final long ADDRESS_OFFSET;
+    private static final Method GET_LONG;
+
+    static {
+        try {
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field field = clazz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            GET_LONG_VOLATILE = lookup.findVirtual(clazz, "getLongVolatile",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(UNSAFE);
+            GET_INT_VOLATILE = lookup.findVirtual(clazz, "getIntVolatile",
+                    MethodType.methodType(int.class, Object.class, long.class)).bindTo(UNSAFE);
+            PUT_ORDERED_LONG = findStore(lookup, clazz, "Long", long.class);
+            PUT_ORDERED_INT = findStore(lookup, clazz, "Int", int.class);
+            ADDRESS_OFFSET = (Long) clazz.getMethod("objectFieldOffset", Field.class).invoke(UNSAFE,
+                    Buffer.class.getDeclaredField("address"));
+            GET_LONG = clazz.getMethod("getLong", Object.class, long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private OrderedMemory() {
+    }
+
+    /**
+     * Finds the release store of the type, or the volatile one (which is
+     * stronger) if the ordered one is gone.
+     */
+    private static MethodHandle findStore(MethodHandles.Lookup lookup, Class<?> clazz, String type, Class<?> value)
+            throws ReflectiveOperationException {
+        MethodType sig = MethodType.methodType(void.class, Object.class, long.class, value);
+        try {
+            return lookup.findVirtual(clazz, "putOrdered" + type, sig).bindTo(UNSAFE);
+        } catch (NoSuchMethodException e) {
+            return lookup.findVirtual(clazz, "put" + type + "Volatile", sig).bindTo(UNSAFE);
+        }
+    }
+
+    /**
+     * The address of the first byte of <code>buffer</code>, which must be
+     * direct, and must be kept reachable while the address is in use.
+     */
+    static long address(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Not a direct buffer");
+        }
+        try {
+            return (Long) GET_LONG.invoke(UNSAFE, buffer, ADDRESS_OFFSET) + buffer.position();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads a long, and keeps the loads and stores after it from moving before
+     * it.
+     */
+    static long getLongAcquire(long address) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Stores a long, and keeps the loads and stores before it from moving
+     * after it.
+     */
+    static void putLongRelease(long address, long value) {
+        try {
+            PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getIntAcquire(long address) {
+        try {
+            return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void putIntRelease(long address, int value) {
+        try {
+            PUT_ORDERED_INT.invokeExact((Object) null, address, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IllegalStateException(t);
+    }
+}
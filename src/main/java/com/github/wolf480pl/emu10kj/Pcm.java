@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Conversion between interleaved little endian PCM and planar DSP words.
+ * <p>
+ * DSP words are Q31 fixed point, so narrower integer samples go in the high
+ * bits and floats are scaled by 2<sup>31</sup>, saturating. Each call
+ * converts a whole block: the samples are copied in bulk between the buffer
+ * and a scratch array, and then (de)interleaved with plain array loops that
+ * the JIT can unroll, and vectorize for mono.
+ * <p>
+ * Encoding to 16 or 24 bits drops the low bits of the words as selected by
+ * {@link Dither}. An instance keeps scratch space and the dither generator,
+ * so it must only be used by one thread at a time.
+ */
+public final class Pcm {
+
+    public enum Encoding {
+        S16(2, 1), S24(3, 1), S32(4, 1), F32(4, 3);
+
+        private final int bytes;
+        private final int wavFormat;
+
+        private Encoding(int bytes, int wavFormat) {
+            this.bytes = bytes;
+            this.wavFormat = wavFormat;
+        }
+
+        public int bytes() {
+            return bytes;
+        }
+
+        public int bits() {
+            return bytes * 8;
+        }
+
+        /**
+         * The format tag of this encoding in a WAV <code>fmt </code> chunk.
+         */
+        public int wavFormat() {
+            return wavFormat;
+        }
+
+        public static Encoding of(int wavFormat, int bits) {
+            for (Encoding e : values()) {
+                if (e.wavFormat == wavFormat && e.bits() == bits) {
+                    return e;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported PCM format " + wavFormat + " with " + bits + " bits");
+        }
+    }
+
+    /**
+     * How the bits dropped when encoding to 16 or 24 bits are handled.
+     */
+    public enum Dither {
+        /**
+         * Drops them, which biases the signal by half an LSB.
+         */
+        TRUNCATE,
+        /**
+         * Rounds to the nearest value.
+         */
+        ROUND,
+        /**
+         * Adds triangular noise of up to one LSB before rounding, which turns
+         * the quantization error into a constant noise floor.
+         */
+        TPDF
+    }
+
+    private static final float Q31 = 2147483648f;
+
+    private final Encoding encoding;
+    private final int channels;
+    private Dither dither = Dither.TRUNCATE;
+    private int seed = ThreadLocalRandom.current().nextInt() | 1;
+    private short[] shorts = new short[0];
+    private int[] ints = new int[0];
+    private float[] floats = new float[0];
+    private byte[] bytes = new byte[0];
+
+    public Pcm(Encoding encoding, int channels) {
+        this.encoding = encoding;
+        this.channels = channels;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getFrameBytes() {
+        return channels * encoding.bytes;
+    }
+
+    public Dither getDither() {
+        return dither;
+    }
+
+    public void setDither(Dither dither) {
+        this.dither = dither;
+    }
+
+    /**
+     * Restarts the TPDF noise, for reproducible output.
+     */
+    public void setDitherSeed(int seed) {
+        this.seed = seed != 0 ? seed : 1;
+    }
+
+    /**
+     * Converts <code>frames</code> frames from <code>src</code> into
+     * <code>planes</code> starting at <code>off</code>, skipping the channels
+     * whose plane is null, and advances <code>src</code> past them.
+     */
+    public void decode(ByteBuffer src, int[][] planes, int off, int frames) {
+        ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int n = frames * channels;
+        switch (encoding) {
+            case S16:
+                short[] shorts = shorts(n);
+                in.asShortBuffer().get(shorts, 0, n);
+                for (int c = 0; c < channels; ++c) {
+                    int[] p = planes[c];
+                    if (p != null) {
+                        for (int i = 0, j = c; i < frames; ++i, j += channels) {
+                            p[off + i] = shorts[j] << 16;
+                        }
+                    }
+                }
+                break;
+            case S24:
+                byte[] bytes = bytes(n * 3);
+                in.get(bytes, 0, n * 3);
+                for (int c = 0; c < channels; ++c) {
+                    int[] p = planes[c];
+                    if (p != null) {
+                        int stride = channels * 3;
+                        for (int i = 0, j = c * 3; i < frames; ++i, j += stride) {
+                            p[off + i] = (bytes[j] & 0xff) << 8 | (bytes[j + 1] & 0xff) << 16 | bytes[j + 2] << 24;
+                        }
+                    }
+                }
+                break;
+            case S32:
+                int[] ints = ints(n);
+                in.asIntBuffer().get(ints, 0, n);
+                for (int c = 0; c < channels; ++c) {
+                    if (planes[c] != null) {
+                        deinterleave(ints, c, planes[c], off, frames);
+                    }
+                }
+                break;
+            case F32:
+                float[] floats = floats(n);
+                in.asFloatBuffer().get(floats, 0, n);
+                for (int c = 0; c < channels; ++c) {
+                    int[] p = planes[c];
+                    if (p != null) {
+                        for (int i = 0, j = c; i < frames; ++i, j += channels) {
+                            // The cast saturates, and makes NaN zero
+                            p[off + i] = (int) (floats[j] * Q31);
+                        }
+                    }
+                }
+                break;
+        }
+        src.position(src.position() + frames * getFrameBytes());
+    }
+
+    /**
+     * Converts <code>frames</code> words of each of <code>planes</code>,
+     * starting at <code>off</code>, into <code>dst</code>, and advances it
+     * past them. Channels whose plane is null are written as silence.
+     */
+    public void encode(int[][] planes, int off, ByteBuffer dst, int frames) {
+        ByteBuffer out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int n = frames * channels;
+        switch (encoding) {
+            case S16:
+                int[] words = ints(n);
+                for (int c = 0; c < channels; ++c) {
+                    interleave(planes[c], off, words, c, frames);
+                    if (planes[c] != null) {
+                        quantize(words, c, frames, 16);
+                    }
+                }
+                short[] shorts = shorts(n);
+                for (int i = 0; i < n; ++i) {
+                    shorts[i] = (short) (words[i] >> 16);
+                }
+                out.asShortBuffer().put(shorts, 0, n);
+                break;
+            case S24:
+                words = ints(n);
+                for (int c = 0; c < channels; ++c) {
+                    interleave(planes[c], off, words, c, frames);
+                    if (planes[c] != null) {
+                        quantize(words, c, frames, 8);
+                    }
+                }
+                byte[] bytes = bytes(n * 3);
+                for (int i = 0, j = 0; i < n; ++i, j += 3) {
+                    int s = words[i];
+                    bytes[j] = (byte) (s >> 8);
+                    bytes[j + 1] = (byte) (s >> 16);
+                    bytes[j + 2] = (byte) (s >> 24);
+                }
+                out.put(bytes, 0, n * 3);
+                break;
+            case S32:
+                words = ints(n);
+                for (int c = 0; c < channels; ++c) {
+                    interleave(planes[c], off, words, c, frames);
+                }
+                out.asIntBuffer().put(words, 0, n);
+                break;
+            case F32:
+                float[] floats = floats(n);
+                for (int c = 0; c < channels; ++c) {
+                    int[] p = planes[c];
+                    for (int i = 0, j = c; i < frames; ++i, j += channels) {
+                        floats[j] = p != null ? p[off + i] / Q31 : 0f;
+                    }
+                }
+                out.asFloatBuffer().put(floats, 0, n);
+                break;
+        }
+        dst.position(dst.position() + frames * getFrameBytes());
+    }
+
+    private void deinterleave(int[] src, int channel, int[] dst, int off, int frames) {
+        if (channels == 1) {
+            System.arraycopy(src, 0, dst, off, frames);
+            return;
+        }
+        for (int i = 0, j = channel; i < frames; ++i, j += channels) {
+            dst[off + i] = src[j];
+        }
+    }
+
+    private void interleave(int[] src, int off, int[] dst, int channel, int frames) {
+        if (src == null) {
+            for (int i = 0, j = channel; i < frames; ++i, j += channels) {
+                dst[j] = 0;
+            }
+        } else if (channels == 1) {
+            System.arraycopy(src, off, dst, 0, frames);
+        } else {
+            for (int i = 0, j = channel; i < frames; ++i, j += channels) {
+                dst[j] = src[off + i];
+            }
+        }
+    }
+
+    /**
+     * Prepares the interleaved words of a channel for dropping their low
+     * <code>drop</code> bits, as selected by the dither, saturating.
+     */
+    private void quantize(int[] words, int channel, int frames, int drop) {
+        switch (dither) {
+            case TRUNCATE:
+                break;
+            case ROUND:
+                int half = 1 << drop - 1;
+                for (int i = 0, j = channel; i < frames; ++i, j += channels) {
+                    words[j] = Alu.clamp((long) words[j] + half);
+                }
+                break;
+            case TPDF:
+                int mask = (1 << drop) - 1;
+                half = 1 << drop - 1;
+                int x = seed;
+                for (int i = 0, j = channel; i < frames; ++i, j += channels) {
+                    x ^= x << 13;
+                    x ^= x >>> 17;
+                    x ^= x << 5;
+                    // Difference of two uniform values under one LSB
+                    int noise = (x & mask) - (x >>> 16 & mask);
+                    words[j] = Alu.clamp((long) words[j] + half + noise);
+                }
+                seed = x;
+                break;
+        }
+    }
+
+    private short[] shorts(int n) {
+        if (shorts.length < n) {
+            shorts = new short[n];
+        }
+        return shorts;
+    }
+
+    private int[] ints(int n) {
+        if (ints.length < n) {
+            ints = new int[n];
+        }
+        return ints;
+    }
+
+    private float[] floats(int n) {
+        if (floats.length < n) {
+            floats = new float[n];
+        }
+        return floats;
+    }
+
+    private byte[] bytes(int n) {
+        if (bytes.length < n) {
+            bytes = new byte[n];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link BlockIO} backed by one <code>int[]</code> per channel, indexed by
+ * frame within the current block.
+ * <p>
+ * The caller fills the input planes before {@link DSP#tickBlock(int)} and
+ * reads the output planes afterwards.
+ */
+public class PlanarIO implements BlockIO {
+    public static final int CHANNELS = 16;
+
+    private final int maxFrames;
+    private final int[][] in, out;
+    private final AddressSpace inSpace, outSpace;
+    private int frame;
+
+    public PlanarIO(int maxFrames) {
+        this(CHANNELS, maxFrames);
+    }
+
+    public PlanarIO(int channels, int maxFrames) {
+        this.maxFrames = maxFrames;
+        this.in = new int[channels][maxFrames];
+        this.out = new int[channels][maxFrames];
+        this.inSpace = new PlaneSpace(in);
+        this.outSpace = new PlaneSpace(out);
+    }
+
+    public int getChannels() {
+        return in.length;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public int[] input(int channel) {
+        return in[channel];
+    }
+
+    public int[] output(int channel) {
+        return out[channel];
+    }
+
+    public void setInput(int channel, int[] plane) {
+        in[channel] = plane;
+    }
+
+    public void setOutput(int channel, int[] plane) {
+        out[channel] = plane;
+    }
+
+    /**
+     * Decodes <code>frames</code> frames from <code>src</code> into the input
+     * planes, starting with channel <code>first</code>.
+     */
+    public void decodeInputs(Pcm pcm, ByteBuffer src, int first, int frames) {
+        pcm.decode(src, Arrays.copyOfRange(in, first, first + pcm.getChannels()), 0, frames);
+    }
+
+    /**
+     * Encodes <code>frames</code> frames of the output planes, starting with
+     * channel <code>first</code>, into <code>dst</code>.
+     */
+    public void encodeOutputs(Pcm pcm, ByteBuffer dst, int first, int frames) {
+        pcm.encode(Arrays.copyOfRange(out, first, first + pcm.getChannels()), 0, dst, frames);
+    }
+
+    @Override
+    public void beginBlock(int frames) {
+        frame = 0;
+    }
+
+    @Override
+    public void setFrame(int frame) {
+        this.frame = frame;
+    }
+
+    @Override
+    public void endBlock(int frames) {
+    }
+
+    @Override
+    public int readIn(int idx) {
+        return inSpace.read(idx);
+    }
+
+    @Override
+    public void writeIn(int idx, int value) {
+        inSpace.write(idx, value);
+    }
+
+    @Override
+    public AddressSpace inputSpace() {
+        return inSpace;
+    }
+
+    @Override
+    public int readOut(int idx) {
+        return outSpace.read(idx);
+    }
+
+    @Override
+    public void writeOut(int idx, int value) {
+        outSpace.write(idx, value);
+    }
+
+    @Override
+    public AddressSpace outputSpace() {
+        return outSpace;
+    }
+
+    protected class PlaneSpace implements AddressSpace {
+        private final int[][] planes;
+
+        protected PlaneSpace(int[][] planes) {
+            this.planes = planes;
+        }
+
+        @Override
+        public int read(int addr) {
+            if (addr >= planes.length) {
+                return 0;
+            }
+            return planes[addr][frame];
+        }
+
+        @Override
+        public void write(int addr, int value) {
+            if (addr >= planes.length) {
+                return;
+            }
+            planes[addr][frame] = value;
+        }
+    }
+}
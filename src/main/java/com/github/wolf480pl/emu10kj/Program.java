@@ -17,6 +17,8 @@
  */
 package com.github.wolf480pl.emu10kj;
 
+import gnu.trove.map.TShortIntMap;
+
 public interface Program {
 
     int getInstrCount();
@@ -27,5 +29,13 @@ public interface Program {
 
     int getXtramSize();
 
+    Instruction[] getInstructions();
+
+    /**
+     * Values that DSP addresses (GPRs, TRAM address registers) should be set
+     * to when the program is loaded, keyed by address.
+     */
+    TShortIntMap getInitialValues();
+
     void run(DSP dsp);
 }
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import gnu.trove.iterator.TShortIntIterator;
+import gnu.trove.map.TShortIntMap;
+import gnu.trove.map.hash.TShortIntHashMap;
+
+/**
+ * Persistent, content-addressed store for the results of compiling
+ * programs, so that they don't have to be compiled again on every start.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of what they were computed from,
+ * including a fingerprint of the class files of the code that computed them.
+ * When that code changes, its old entries are simply never looked up again,
+ * and {@link #clear()} reclaims their space.
+ * <p>
+ * The file is a header followed by entries appended one after another, each
+ * with its key, length and CRC-32. It is memory-mapped when opened and its
+ * intact entries are copied to the heap in one go, so that other processes
+ * can clear or empty the file at any time without pulling it from under this
+ * one. A torn entry at the end (from a crash while appending) is cut off,
+ * and a file with another format version is emptied. Opening, appending and
+ * clearing hold a file lock, so several processes can share a cache, though
+ * each only sees the entries that were there when it opened the file, plus
+ * its own.
+ * <p>
+ * Failing to write to the cache never fails the compilation being cached:
+ * the entry is skipped and the exception is kept for {@link #getFailure()}.
+ */
+public class ProgramCache implements Closeable {
+    public static final int MAGIC = 0x43303145;
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int KEY_BYTES = 32;
+    private static final int ENTRY_HEADER = KEY_BYTES + 8;
+
+    private final FileChannel channel;
+    // Payloads of the entries, slices of the file's heap copy or of their own
+    private final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+    private IOException failure;
+
+    private ProgramCache(FileChannel channel) throws IOException {
+        this.channel = channel;
+        FileLock lock = channel.lock();
+        try {
+            long size = channel.size();
+            ByteBuffer file = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            if (size > 0) {
+                file.put(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)).flip();
+            }
+            if (size < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+                reset();
+                return;
+            }
+            long end = scan(file);
+            if (end < size) {
+                channel.truncate(end);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Opens <code>file</code> as a cache, creating it if needed.
+     */
+    public static ProgramCache open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new ProgramCache(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the entry stored under <code>key</code>, or null if there is none
+     */
+    public synchronized ByteBuffer get(byte[] key) {
+        ByteBuffer value = entries.get(ByteBuffer.wrap(key));
+        return value == null ? null : value.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Stores the remaining bytes of <code>value</code> under <code>key</code>,
+     * both in memory and at the end of the file.
+     */
+    public synchronized void put(byte[] key, ByteBuffer value) {
+        if (key.length != KEY_BYTES) {
+            throw new IllegalArgumentException("Key must be " + KEY_BYTES + " bytes: " + key.length);
+        }
+        ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+        copy.put(value.duplicate()).flip();
+        entries.put(ByteBuffer.wrap(key.clone()), copy);
+
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER + copy.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        entry.put(key).putInt(copy.remaining()).putInt(crc(copy)).put(copy.duplicate()).flip();
+        try {
+            FileLock lock = channel.lock();
+            try {
+                long pos = channel.size();
+                while (entry.hasRemaining()) {
+                    pos += channel.write(entry, pos);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all the entries, from memory and from the file.
+     */
+    public synchronized void clear() throws IOException {
+        entries.clear();
+        FileLock lock = channel.lock();
+        try {
+            reset();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return the last exception that prevented an entry from being written,
+     *         or null
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns a {@link Compiler} that looks the source up in this cache first,
+     * and stores what <code>backend</code> compiles.
+     * <p>
+     * Cached programs come back as {@link InterpretedProgram}s with the same
+     * code, sizes and initial values as the compiled ones. Each call returns
+     * a new instance, so wrap the result in a {@link CachingCompiler} to share
+     * them (and their bound code) within a process.
+     * <p>
+     * Entries are keyed by the class files of <code>backend</code> and of the
+     * compilers it wraps through {@link CachingCompiler}s, but not by how
+     * they are configured. Backends configured to compile differently must be
+     * given different tags with {@link #compiler(Compiler, String)}.
+     */
+    public Compiler compiler(Compiler backend) {
+        return compiler(backend, "");
+    }
+
+    /**
+     * Returns a {@link Compiler} like {@link #compiler(Compiler)}, with
+     * entries also keyed by <code>tag</code>.
+     */
+    public Compiler compiler(final Compiler backend, String tag) {
+        MessageDigest tagged = digest();
+        tagged.update(fingerprint(chain(backend)));
+        final byte[] fingerprint = tagged.digest(tag.getBytes(StandardCharsets.UTF_8));
+        return new Compiler() {
+            @Override
+            public Program compile(String assembly) {
+                MessageDigest digest = digest();
+                digest.update(fingerprint);
+                byte[] key = digest.digest(assembly.getBytes(StandardCharsets.UTF_8));
+                ByteBuffer cached = get(key);
+                if (cached != null) {
+                    return readProgram(cached);
+                }
+                Program program = backend.compile(assembly);
+                put(key, writeProgram(program));
+                return program;
+            }
+        };
+    }
+
+    /**
+     * The classes of <code>compiler</code> and of the compilers it wraps.
+     */
+    private static Class<?>[] chain(Compiler compiler) {
+        List<Class<?>> classes = new ArrayList<>();
+        classes.add(compiler.getClass());
+        while (compiler instanceof CachingCompiler) {
+            compiler = ((CachingCompiler) compiler).getBackend();
+            classes.add(compiler.getClass());
+        }
+        return classes.toArray(new Class<?>[classes.size()]);
+    }
+
+    /**
+     * Reads the entries of the file.
+     *
+     * @return the end of the last intact entry
+     */
+    private long scan(ByteBuffer file) {
+        int pos = HEADER_SIZE;
+        while (file.limit() - pos >= ENTRY_HEADER) {
+            int len = file.getInt(pos + KEY_BYTES);
+            if (len < 0 || file.limit() - pos - ENTRY_HEADER < len) {
+                break;
+            }
+            ByteBuffer value = slice(file, pos + ENTRY_HEADER, len);
+            if (crc(value) != file.getInt(pos + KEY_BYTES + 4)) {
+                break;
+            }
+            entries.put(slice(file, pos, KEY_BYTES), value);
+            pos += ENTRY_HEADER + len;
+        }
+        return pos;
+    }
+
+    private void reset() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int pos, int len) {
+        ByteBuffer dup = buf.duplicate();
+        dup.limit(pos + len).position(pos);
+        return dup.slice();
+    }
+
+    private static int crc(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            byte[] bytes = new byte[buf.remaining()];
+            buf.duplicate().get(bytes);
+            crc.update(bytes);
+        }
+        return (int) crc.getValue();
+    }
+
+    static ByteBuffer writeProgram(Program program) {
+        Microcode code = Microcode.of(program.getInstructions());
+        TShortIntMap init = program.getInitialValues();
+        ByteBuffer buf = ByteBuffer.allocate(20 + code.length() * Microcode.INSTR_BYTES + init.size() * 6)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(program.getGPRCount()).putInt(program.getItramSize()).putInt(program.getXtramSize());
+        buf.putInt(code.length());
+        code.write(buf);
+        buf.putInt(init.size());
+        for (TShortIntIterator it = init.iterator(); it.hasNext();) {
+            it.advance();
+            buf.putShort(it.key()).putInt(it.value());
+        }
+        buf.flip();
+        return buf;
+    }
+
+    static Program readProgram(ByteBuffer buf) {
+        int gprs = buf.getInt();
+        int itram = buf.getInt();
+        int xtram = buf.getInt();
+        int length = buf.getInt();
+        ByteBuffer words = buf.slice();
+        words.limit(length * Microcode.INSTR_BYTES);
+        Microcode code = Microcode.load(words);
+        buf.position(buf.position() + length * Microcode.INSTR_BYTES);
+        int count = buf.getInt();
+        TShortIntMap init = new TShortIntHashMap(count);
+        for (int i = 0; i < count; ++i) {
+            init.put(buf.getShort(), buf.getInt());
+        }
+        return new InterpretedProgram(code, gprs, itram, xtram, init);
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes the names and class files of <code>classes</code> and the classes
+     * nested in them, so that a key including it changes whenever any of them
+     * is recompiled differently.
+     * If a class file can't be read, only its name counts.
+     */
+    static byte[] fingerprint(Class<?>... classes) {
+        MessageDigest digest = digest();
+        for (Class<?> clazz : classes) {
+            fingerprint(digest, clazz);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Adds a class and its nested classes to the fingerprint.
+     */
+    private static void fingerprint(MessageDigest digest, Class<?> clazz) {
+        String name = clazz.getName();
+        digest.update(name.getBytes(StandardCharsets.UTF_8));
+        try (InputStream in = clazz.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+            if (in != null) {
+                byte[] buf = new byte[8192];
+                for (int n; (n = in.read(buf)) > 0;) {
+                    digest.update(buf, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            // Only the name counts then
+        }
+        for (Class<?> nested : clazz.getDeclaredClasses()) {
+            fingerprint(digest, nested);
+        }
+    }
+}
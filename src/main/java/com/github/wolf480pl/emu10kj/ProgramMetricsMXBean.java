@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.Map;
+
+/**
+ * JMX view of an {@link InstrumentedProgram}. All durations are in
+ * nanoseconds, and one run is one sample frame.
+ */
+public interface ProgramMetricsMXBean {
+
+    long getRuns();
+
+    /**
+     * How many instructions of each opcode were issued, by mnemonic. With
+     * SKIP, that includes the skipped ones.
+     */
+    Map<String, Long> getOpcodeCounts();
+
+    long getDeadlineNanos();
+
+    /**
+     * How many runs took longer than one sample period.
+     */
+    long getDeadlineMisses();
+
+    double getMeanNanos();
+
+    long getMaxNanos();
+
+    long getMedianNanos();
+
+    long getP99Nanos();
+
+    long getP999Nanos();
+
+    long getPercentileNanos(double percentile);
+
+    void reset();
+}
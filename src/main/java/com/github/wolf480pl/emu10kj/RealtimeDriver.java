@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ticks a DSP one block at a time on its own thread, paced to a sample rate.
+ * <p>
+ * Each block has a deadline at which it's due to start, counted from when the
+ * driver started so that rounding doesn't accumulate. How late the thread
+ * actually wakes up is recorded as jitter, and how long the block took to
+ * process as block time. A block that finishes after the next one was due is
+ * an overrun; if it's a whole block late, the driver gives up catching up and
+ * restarts the count from now rather than ticking the late blocks back to back.
+ * <p>
+ * Java can't pin threads to cores, so the thread is created by a
+ * {@link ThreadFactory}, which can set its priority or pin it with a native
+ * affinity library. The default one makes a max priority daemon thread.
+ */
+public class RealtimeDriver implements Runnable {
+    private final DSP dsp;
+    private final int sampleRate;
+    private final int blockSize;
+    private final WaitStrategy wait;
+    private final LatencyHistogram jitter = new LatencyHistogram();
+    private final LatencyHistogram blockTime = new LatencyHistogram();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private volatile boolean running;
+    private Thread thread;
+
+    public RealtimeDriver(DSP dsp, int sampleRate, int blockSize, WaitStrategy wait) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        this.dsp = dsp;
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+        this.wait = wait;
+    }
+
+    public synchronized void start() {
+        start(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "emu10k1-driver");
+                t.setDaemon(true);
+                t.setPriority(Thread.MAX_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    public synchronized void start(ThreadFactory factory) {
+        if (thread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        running = true;
+        thread = factory.newThread(this);
+        thread.start();
+    }
+
+    /**
+     * Stops after the current block and waits for the thread to finish.
+     */
+    public synchronized void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.join();
+            thread = null;
+        }
+    }
+
+    /**
+     * The loop of the driver thread, which ticks the DSP until
+     * {@link #stop()}ped. Use {@link #start()} rather than calling it.
+     */
+    @Override
+    public void run() {
+        long base = System.nanoTime();
+        long frames = 0;
+        while (running) {
+            long deadline = base + framesToNanos(frames);
+            wait.waitUntil(deadline);
+            long start = System.nanoTime();
+            jitter.record(start - deadline);
+            dsp.tickBlock(blockSize);
+            long end = System.nanoTime();
+            blockTime.record(end - start);
+            frames += blockSize;
+            long next = base + framesToNanos(frames);
+            if (end - next > 0) {
+                overruns.lazySet(overruns.get() + 1);
+                if (end - next >= framesToNanos(blockSize)) {
+                    resyncs.lazySet(resyncs.get() + 1);
+                    base = end;
+                    frames = 0;
+                }
+            }
+        }
+    }
+
+    private long framesToNanos(long frames) {
+        return frames / sampleRate * 1000000000L + frames % sampleRate * 1000000000L / sampleRate;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getBlockNanos() {
+        return framesToNanos(blockSize);
+    }
+
+    /**
+     * How late each block started, in nanoseconds.
+     */
+    public LatencyHistogram getJitter() {
+        return jitter;
+    }
+
+    /**
+     * How long each block took to tick, in nanoseconds.
+     */
+    public LatencyHistogram getBlockTime() {
+        return blockTime;
+    }
+
+    /**
+     * How many blocks finished after the next one was due.
+     */
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    /**
+     * How many times the driver fell a whole block behind and restarted
+     * counting from then, dropping the time it was late by.
+     */
+    public long getResyncs() {
+        return resyncs.get();
+    }
+
+    public void resetStats() {
+        jitter.reset();
+        blockTime.reset();
+        overruns.set(0);
+        resyncs.set(0);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * One independent stream rendered offline by a {@link BatchRenderer}.
+ * <p>
+ * Subclasses fill the input planes before each block and collect the output
+ * planes after it. A job is only ever run by one thread at a time, so it
+ * can keep its results in plain fields.
+ */
+public abstract class RenderJob {
+    protected final Emu10k1 dsp;
+    protected final PlanarIO fxbus, extIO;
+    private final long frames;
+
+    /**
+     * @param dsp a DSP created with <code>fxbus</code> and <code>extIO</code>,
+     *        with a program loaded
+     * @param frames total number of sample frames to render
+     */
+    protected RenderJob(Emu10k1 dsp, PlanarIO fxbus, PlanarIO extIO, long frames) {
+        this.dsp = dsp;
+        this.fxbus = fxbus;
+        this.extIO = extIO;
+        this.frames = frames;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Fills the input planes with <code>count</code> frames starting at
+     * <code>frame</code>.
+     */
+    protected abstract void fill(long frame, int count);
+
+    /**
+     * Collects <code>count</code> frames starting at <code>frame</code> from
+     * the output planes.
+     */
+    protected abstract void drain(long frame, int count);
+
+    /**
+     * Renders all the frames, in blocks of at most <code>blockSize</code>
+     * frames, and at most as many as the IO planes hold.
+     *
+     * @throws IllegalArgumentException if that leaves less than one frame per
+     *         block
+     */
+    public void render(int blockSize) {
+        blockSize = Math.min(blockSize, Math.min(fxbus.getMaxFrames(), extIO.getMaxFrames()));
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        for (long frame = 0; frame < frames; frame += blockSize) {
+            int count = (int) Math.min(blockSize, frames - frame);
+            fill(frame, count);
+            dsp.tickBlock(count);
+            drain(frame, count);
+        }
+    }
+}
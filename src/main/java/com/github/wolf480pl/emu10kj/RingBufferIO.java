@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * {@link BlockIO} that exchanges samples with other threads through
+ * {@link SpscRing}s, one for the inputs and one for the outputs.
+ * <p>
+ * A capture thread feeds inputs with {@link #offerInput(int[], int, int)},
+ * the DSP thread pulls a block of them at the start of every block and
+ * pushes a block of outputs at its end, and a playback thread drains them
+ * with {@link #pollOutput(int[], int, int)}. Nothing locks or allocates.
+ * When inputs run out, the rest of the block gets silence and the underrun
+ * counter goes up. When the output ring is full, the frames that don't fit
+ * are dropped and the overrun counter goes up.
+ */
+public class RingBufferIO extends PlanarIO {
+    private final SpscRing in, out;
+    private final int[][] inPlanes, outPlanes;
+    // Only written by the DSP thread
+    private volatile long underruns, overruns;
+
+    /**
+     * @param capacity ring size in frames, must be a power of two
+     */
+    public RingBufferIO(int maxFrames, int capacity) {
+        this(CHANNELS, maxFrames, capacity);
+    }
+
+    public RingBufferIO(int channels, int maxFrames, int capacity) {
+        super(channels, maxFrames);
+        this.in = new SpscRing(channels, capacity);
+        this.out = new SpscRing(channels, capacity);
+        this.inPlanes = new int[channels][];
+        this.outPlanes = new int[channels][];
+    }
+
+    /**
+     * Called by the producer thread.
+     *
+     * @return number of frames accepted
+     */
+    public int offerInput(int[] interleaved, int off, int frames) {
+        return in.offer(interleaved, off, frames);
+    }
+
+    /**
+     * Called by the consumer thread.
+     *
+     * @return number of frames returned
+     */
+    public int pollOutput(int[] interleaved, int off, int frames) {
+        return out.poll(interleaved, off, frames);
+    }
+
+    public SpscRing getInputRing() {
+        return in;
+    }
+
+    public SpscRing getOutputRing() {
+        return out;
+    }
+
+    /**
+     * Number of input frames the DSP wanted but the producer hadn't
+     * supplied yet.
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Number of output frames dropped because the consumer didn't keep up.
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    @Override
+    public void beginBlock(int frames) {
+        super.beginBlock(frames);
+        int[][] planes = inPlanes;
+        for (int ch = 0; ch < planes.length; ++ch) {
+            planes[ch] = input(ch);
+        }
+        int got = in.poll(planes, frames);
+        if (got < frames) {
+            for (int[] plane : planes) {
+                for (int i = got; i < frames; ++i) {
+                    plane[i] = 0;
+                }
+            }
+            underruns += frames - got;
+        }
+    }
+
+    @Override
+    public void endBlock(int frames) {
+        super.endBlock(frames);
+        int[][] planes = outPlanes;
+        for (int ch = 0; ch < planes.length; ++ch) {
+            planes[ch] = output(ch);
+        }
+        int put = out.offer(planes, frames);
+        if (put < frames) {
+            overruns += frames - put;
+        }
+    }
+}
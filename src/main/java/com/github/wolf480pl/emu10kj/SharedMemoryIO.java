@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link BlockIO} whose inputs and outputs live in a memory-mapped file, so
+ * that another process can feed and drain the DSP without copying samples
+ * through a socket.
+ * <p>
+ * The file has a header followed by two input slots and two output slots,
+ * each a block of <code>channels</code> planes of <code>maxFrames</code>
+ * ints. The DSP reads its inputs from, and writes its outputs to, the slots
+ * in place. All values are in native byte order, and the longs are 8 byte
+ * aligned. The magic number and the sequence numbers are written with release
+ * stores and read with acquire loads, which publish what was written before
+ * them:
+ *
+ * <pre>
+ *   0 int  magic "E10S"             4 int  version
+ *   8 int  channels                12 int  maxFrames
+ *  64 long inputSeq                72 int  inputFrames[2]      (written by the client)
+ * 128 long consumedSeq            136 long outputSeq           (written by the DSP)
+ * 144 long frameCount             152 int  outputFrames[2]
+ * 160 long underruns              168 long overruns
+ * 192 long outputAck                                           (written by the client)
+ * 256 int  input[2][channels][maxFrames], output[2][channels][maxFrames]
+ * </pre>
+ *
+ * Block <code>n</code> of either direction goes in slot <code>n &amp; 1</code>.
+ * Each counter has exactly one writer, and each side publishes a slot by
+ * bumping its sequence number after filling it, so neither side ever locks
+ * or waits for the other:
+ * <ul>
+ * <li>The client may fill input block <code>inputSeq</code> while
+ * <code>inputSeq - consumedSeq &lt; 2</code>, then sets its frame count and
+ * increments <code>inputSeq</code>.</li>
+ * <li>Each DSP block takes input block <code>consumedSeq</code> if the client
+ * has published it, and increments <code>consumedSeq</code> at the end.
+ * Otherwise the inputs read as silence and <code>underruns</code> goes up by
+ * the block size.</li>
+ * <li>Each DSP block writes output block <code>outputSeq</code> if
+ * <code>outputSeq - outputAck &lt; 2</code>, and publishes it by incrementing
+ * <code>outputSeq</code>. Otherwise the outputs are dropped and
+ * <code>overruns</code> goes up.</li>
+ * <li>The client reads output block <code>outputAck</code> while it is below
+ * <code>outputSeq</code>, then increments <code>outputAck</code>.</li>
+ * </ul>
+ * {@link Client} implements the other side for a Java process.
+ */
+public class SharedMemoryIO implements BlockIO {
+    public static final int MAGIC = 0x53303145;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 256;
+
+    static final int CHANNELS = 8;
+    static final int MAX_FRAMES = 12;
+    static final int INPUT_SEQ = 64;
+    static final int INPUT_FRAMES = 72;
+    static final int CONSUMED_SEQ = 128;
+    static final int OUTPUT_SEQ = 136;
+    static final int FRAME_COUNT = 144;
+    static final int OUTPUT_FRAMES = 152;
+    static final int UNDERRUNS = 160;
+    static final int OVERRUNS = 168;
+    static final int OUTPUT_ACK = 192;
+
+    private final ByteBuffer header;
+    // Address of the header, valid while it's reachable
+    private final long address;
+    private final IntBuffer data;
+    private final int channels, maxFrames;
+    private final AddressSpace inSpace, outSpace;
+    // Mirrors of the counters this side writes
+    private long consumedSeq, outputSeq, frameCount, underruns, overruns;
+    // Index of frame 0 of channel 0 of the current slots, -1 if none
+    private int inBase = -1, outBase = -1;
+    private int inFrames;
+    private int frame;
+
+    /**
+     * Takes over a direct buffer laid out as described above, as written by
+     * {@link #create(Path, int, int)} or {@link #format(ByteBuffer, int, int)}.
+     */
+    public SharedMemoryIO(ByteBuffer buffer) {
+        this.header = checkHeader(buffer);
+        this.address = OrderedMemory.address(header);
+        this.channels = header.getInt(CHANNELS);
+        this.maxFrames = header.getInt(MAX_FRAMES);
+        this.data = dataView(header);
+        this.consumedSeq = header.getLong(CONSUMED_SEQ);
+        this.outputSeq = header.getLong(OUTPUT_SEQ);
+        this.frameCount = header.getLong(FRAME_COUNT);
+        this.underruns = header.getLong(UNDERRUNS);
+        this.overruns = header.getLong(OVERRUNS);
+        this.inSpace = new SlotSpace(true);
+        this.outSpace = new SlotSpace(false);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * Number of frames processed so far.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Number of input frames the DSP wanted but the client hadn't supplied.
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Number of output frames dropped because the client didn't keep up.
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Whether the client has published an input block that the DSP hasn't
+     * consumed yet.
+     */
+    public boolean isInputReady() {
+        return OrderedMemory.getLongAcquire(address + INPUT_SEQ) > consumedSeq;
+    }
+
+    @Override
+    public void beginBlock(int frames) {
+        if (frames > maxFrames) {
+            throw new IllegalArgumentException("Block of " + frames + " frames, only room for " + maxFrames);
+        }
+        frame = 0;
+        if (OrderedMemory.getLongAcquire(address + INPUT_SEQ) > consumedSeq) {
+            int slot = (int) consumedSeq & 1;
+            inBase = slot * channels * maxFrames;
+            inFrames = Math.min(frames, header.getInt(INPUT_FRAMES + slot * 4));
+        } else {
+            inBase = -1;
+            inFrames = 0;
+        }
+        if (inFrames < frames) {
+            underruns += frames - inFrames;
+        }
+        if (outputSeq - OrderedMemory.getLongAcquire(address + OUTPUT_ACK) < 2) {
+            outBase = (2 + ((int) outputSeq & 1)) * channels * maxFrames;
+        } else {
+            outBase = -1;
+            overruns += frames;
+        }
+    }
+
+    @Override
+    public void setFrame(int frame) {
+        this.frame = frame;
+    }
+
+    @Override
+    public void endBlock(int frames) {
+        frameCount += frames;
+        header.putLong(FRAME_COUNT, frameCount);
+        header.putLong(UNDERRUNS, underruns);
+        header.putLong(OVERRUNS, overruns);
+        if (outBase >= 0) {
+            header.putInt(OUTPUT_FRAMES + ((int) outputSeq & 1) * 4, frames);
+            OrderedMemory.putLongRelease(address + OUTPUT_SEQ, ++outputSeq);
+        }
+        if (inBase >= 0) {
+            // The slot is free once the DSP is done reading it
+            OrderedMemory.putLongRelease(address + CONSUMED_SEQ, ++consumedSeq);
+        }
+        inBase = -1;
+        outBase = -1;
+    }
+
+    @Override
+    public int readIn(int idx) {
+        return inSpace.read(idx);
+    }
+
+    @Override
+    public void writeIn(int idx, int value) {
+        inSpace.write(idx, value);
+    }
+
+    @Override
+    public AddressSpace inputSpace() {
+        return inSpace;
+    }
+
+    @Override
+    public int readOut(int idx) {
+        return outSpace.read(idx);
+    }
+
+    @Override
+    public void writeOut(int idx, int value) {
+        outSpace.write(idx, value);
+    }
+
+    @Override
+    public AddressSpace outputSpace() {
+        return outSpace;
+    }
+
+    private class SlotSpace implements AddressSpace {
+        private final boolean input;
+
+        SlotSpace(boolean input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read(int addr) {
+            if (input) {
+                if (inBase < 0 || addr >= channels || frame >= inFrames) {
+                    return 0;
+                }
+                return data.get(inBase + addr * maxFrames + frame);
+            }
+            if (outBase < 0 || addr >= channels) {
+                return 0;
+            }
+            return data.get(outBase + addr * maxFrames + frame);
+        }
+
+        @Override
+        public void write(int addr, int value) {
+            int base = input ? inBase : outBase;
+            if (base < 0 || addr >= channels) {
+                return;
+            }
+            data.put(base + addr * maxFrames + frame, value);
+        }
+    }
+
+    /**
+     * Size in bytes of a file for the given geometry.
+     */
+    public static long size(int channels, int maxFrames) {
+        return HEADER_SIZE + 16L * channels * maxFrames;
+    }
+
+    /**
+     * Writes an empty header for the given geometry to the start of a direct
+     * <code>buffer</code>.
+     */
+    public static void format(ByteBuffer buffer, int channels, int maxFrames) {
+        if (channels < 1 || maxFrames < 1) {
+            throw new IllegalArgumentException("Invalid geometry: " + channels + " channels, " + maxFrames + " frames");
+        }
+        if (buffer.remaining() < size(channels, maxFrames)) {
+            throw new IllegalArgumentException("Buffer too small: " + buffer.remaining());
+        }
+        ByteBuffer header = buffer.slice().order(ByteOrder.nativeOrder());
+        for (int i = 0; i < HEADER_SIZE; i += 8) {
+            header.putLong(i, 0);
+        }
+        header.putInt(CHANNELS, channels);
+        header.putInt(MAX_FRAMES, maxFrames);
+        header.putInt(4, VERSION);
+        OrderedMemory.putIntRelease(OrderedMemory.address(header), MAGIC);
+    }
+
+    /**
+     * Creates (or truncates) <code>file</code> and maps it as the DSP side.
+     * The client can open it with {@link Client#open(Path)} afterwards.
+     */
+    public static SharedMemoryIO create(Path file, int channels, int maxFrames) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, size(channels, maxFrames));
+            format(buffer, channels, maxFrames);
+            return new SharedMemoryIO(buffer);
+        }
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+        }
+    }
+
+    private static ByteBuffer checkHeader(ByteBuffer buffer) {
+        ByteBuffer header = buffer.slice().order(ByteOrder.nativeOrder());
+        if (header.remaining() < HEADER_SIZE || OrderedMemory.getIntAcquire(OrderedMemory.address(header)) != MAGIC) {
+            throw new IllegalArgumentException("Not a shared memory IO buffer");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported shared memory IO version " + header.getInt(4));
+        }
+        if (header.remaining() < size(header.getInt(CHANNELS), header.getInt(MAX_FRAMES))) {
+            throw new IllegalArgumentException("Shared memory IO buffer truncated");
+        }
+        return header;
+    }
+
+    private static IntBuffer dataView(ByteBuffer header) {
+        ByteBuffer bytes = header.duplicate();
+        bytes.position(HEADER_SIZE);
+        return bytes.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * The side of a {@link SharedMemoryIO} that supplies the inputs and
+     * consumes the outputs, usually in another process. Must be used by one
+     * thread at a time.
+     */
+    public static class Client {
+        private final ByteBuffer header;
+        private final long address;
+        private final IntBuffer data;
+        private final int channels, maxFrames;
+        private long inputSeq, outputAck;
+
+        public Client(ByteBuffer buffer) {
+            this.header = checkHeader(buffer);
+            this.address = OrderedMemory.address(header);
+            this.channels = header.getInt(CHANNELS);
+            this.maxFrames = header.getInt(MAX_FRAMES);
+            this.data = dataView(header);
+            this.inputSeq = header.getLong(INPUT_SEQ);
+            this.outputAck = header.getLong(OUTPUT_ACK);
+        }
+
+        /**
+         * Maps a file created by {@link SharedMemoryIO#create(Path, int, int)}.
+         */
+        public static Client open(Path file) throws IOException {
+            return new Client(map(file));
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        public int getMaxFrames() {
+            return maxFrames;
+        }
+
+        public long getFrameCount() {
+            return header.getLong(FRAME_COUNT);
+        }
+
+        public long getUnderruns() {
+            return header.getLong(UNDERRUNS);
+        }
+
+        public long getOverruns() {
+            return header.getLong(OVERRUNS);
+        }
+
+        /**
+         * Whether there is a free input slot.
+         */
+        public boolean canWriteInput() {
+            return inputSeq - OrderedMemory.getLongAcquire(address + CONSUMED_SEQ) < 2;
+        }
+
+        /**
+         * Copies <code>frames</code> samples of <code>channel</code> into the
+         * free input slot. Only valid after {@link #canWriteInput()} returned
+         * true, and before {@link #publishInput(int)}.
+         */
+        public void writeInput(int channel, int[] src, int off, int frames) {
+            IntBuffer view = data.duplicate();
+            view.position((((int) inputSeq & 1) * channels + channel) * maxFrames);
+            view.put(src, off, frames);
+        }
+
+        /**
+         * Hands the input slot over to the DSP, with <code>frames</code>
+         * frames in it.
+         */
+        public void publishInput(int frames) {
+            if (frames > maxFrames) {
+                throw new IllegalArgumentException("Block of " + frames + " frames, only room for " + maxFrames);
+            }
+            header.putInt(INPUT_FRAMES + ((int) inputSeq & 1) * 4, frames);
+            OrderedMemory.putLongRelease(address + INPUT_SEQ, ++inputSeq);
+        }
+
+        /**
+         * Number of frames in the oldest unread output block, or -1 if there
+         * is none.
+         */
+        public int availableOutput() {
+            if (OrderedMemory.getLongAcquire(address + OUTPUT_SEQ) <= outputAck) {
+                return -1;
+            }
+            return header.getInt(OUTPUT_FRAMES + ((int) outputAck & 1) * 4);
+        }
+
+        /**
+         * Copies <code>frames</code> samples of <code>channel</code> from the
+         * oldest unread output block. Only valid after
+         * {@link #availableOutput()} returned at least <code>frames</code>,
+         * and before {@link #releaseOutput()}.
+         */
+        public void readOutput(int channel, int[] dst, int off, int frames) {
+            IntBuffer view = data.duplicate();
+            view.position(((2 + ((int) outputAck & 1)) * channels + channel) * maxFrames);
+            view.get(dst, off, frames);
+        }
+
+        /**
+         * Gives the oldest unread output slot back to the DSP.
+         */
+        public void releaseOutput() {
+            OrderedMemory.putLongRelease(address + OUTPUT_ACK, ++outputAck);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * What the engines work out about SKIP and CCR once, when a program is bound,
+ * instead of on every tick: where each SKIP with a constant count jumps to,
+ * and whether the program reads CCR at all (if it doesn't, the flags don't
+ * need to be computed).
+ */
+final class SkipTable {
+    private final int[] targets;
+    private final boolean readsCcr;
+    private final boolean hasSkips;
+    private final boolean isStatic;
+
+    SkipTable(Instruction[] code) {
+        targets = new int[code.length];
+        boolean ccr = false, skips = false, constant = true;
+        for (int pc = 0; pc < code.length; ++pc) {
+            Instruction instr = code[pc];
+            ccr |= instr.getRegA() == Emu10k1.CCR || instr.getRegX() == Emu10k1.CCR || instr.getRegY() == Emu10k1.CCR;
+            targets[pc] = -1;
+            if (instr.getOpcode() == Opcodes.SKIP) {
+                skips = true;
+                short count = instr.getRegY();
+                if (count >= Emu10k1.CONST_START && count <= Emu10k1.CONST_END) {
+                    int value = Emu10k1.CONSTANTS.get((short) (count - Emu10k1.CONST_START));
+                    targets[pc] = Alu.skipTarget(pc, value, code.length);
+                } else {
+                    constant = false;
+                }
+            }
+        }
+        this.readsCcr = ccr;
+        this.hasSkips = skips;
+        this.isStatic = constant;
+    }
+
+    /**
+     * @return the index of the instruction to continue at if the SKIP at pc
+     *         is taken, or -1 if its count is only known at run time
+     */
+    int target(int pc) {
+        return targets[pc];
+    }
+
+    /**
+     * @return the index to continue at if the SKIP at pc, whose Y operand
+     *         currently reads <code>count</code>, is taken
+     */
+    int target(int pc, int count) {
+        int target = targets[pc];
+        return target >= 0 ? target : Alu.skipTarget(pc, count, targets.length);
+    }
+
+    boolean readsCcr() {
+        return readsCcr;
+    }
+
+    boolean hasSkips() {
+        return hasSkips;
+    }
+
+    /**
+     * Whether every SKIP has a constant count.
+     */
+    boolean isStatic() {
+        return isStatic;
+    }
+}
@@ -50,4 +50,12 @@ public class SplitAddressSpace implements AddressSpace {
         subspaces[high].write(low, value);
     }
 
+    AddressSpace subspace(int addr) {
+        return subspaces[addr >>> shift];
+    }
+
+    int subaddress(int addr) {
+        return addr & lomask;
+    }
+
 }
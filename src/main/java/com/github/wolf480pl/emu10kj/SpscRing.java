@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer single-consumer ring buffer of sample frames.
+ * <p>
+ * Frames are stored interleaved, <code>channels</code> ints each.
+ * Exactly one thread may call the <code>offer</code> methods and exactly one
+ * (other) thread may call the <code>poll</code> methods. Neither side ever
+ * blocks or allocates: they move as many frames as fit and return how many
+ * that was.
+ */
+public class SpscRing {
+    private final int channels;
+    private final int capacity;
+    private final int mask;
+    private final int[] data;
+    /**
+     * Position of the next frame to be polled. Only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Position of the next frame to be offered. Only written by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    // Last seen position of the other side, to avoid touching its cache line
+    private long cachedHead, cachedTail;
+
+    /**
+     * @param capacity in frames, must be a power of two
+     */
+    public SpscRing(int channels, int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.channels = channels;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.data = new int[capacity * channels];
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of frames available to the consumer. Exact only when called by
+     * the consumer or the producer, approximate otherwise.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Offers up to <code>frames</code> interleaved frames from
+     * <code>src</code>, starting at index <code>off</code>.
+     *
+     * @return number of frames actually added
+     */
+    public int offer(int[] src, int off, int frames) {
+        long t = tail.get();
+        int count = writable(t, frames);
+        for (int i = 0; i < count; ++i) {
+            System.arraycopy(src, off + i * channels, data, slot(t + i), channels);
+        }
+        tail.lazySet(t + count);
+        return count;
+    }
+
+    /**
+     * Offers up to <code>frames</code> frames taken from one array per
+     * channel.
+     *
+     * @return number of frames actually added
+     */
+    public int offer(int[][] planes, int frames) {
+        long t = tail.get();
+        int count = writable(t, frames);
+        int chans = Math.min(channels, planes.length);
+        for (int i = 0; i < count; ++i) {
+            int base = slot(t + i);
+            for (int ch = 0; ch < chans; ++ch) {
+                data[base + ch] = planes[ch][i];
+            }
+        }
+        tail.lazySet(t + count);
+        return count;
+    }
+
+    /**
+     * Polls up to <code>frames</code> frames into <code>dst</code>,
+     * interleaved, starting at index <code>off</code>.
+     *
+     * @return number of frames actually removed
+     */
+    public int poll(int[] dst, int off, int frames) {
+        long h = head.get();
+        int count = readable(h, frames);
+        for (int i = 0; i < count; ++i) {
+            System.arraycopy(data, slot(h + i), dst, off + i * channels, channels);
+        }
+        head.lazySet(h + count);
+        return count;
+    }
+
+    /**
+     * Polls up to <code>frames</code> frames into one array per channel.
+     *
+     * @return number of frames actually removed
+     */
+    public int poll(int[][] planes, int frames) {
+        long h = head.get();
+        int count = readable(h, frames);
+        int chans = Math.min(channels, planes.length);
+        for (int i = 0; i < count; ++i) {
+            int base = slot(h + i);
+            for (int ch = 0; ch < chans; ++ch) {
+                planes[ch][i] = data[base + ch];
+            }
+        }
+        head.lazySet(h + count);
+        return count;
+    }
+
+    private int writable(long t, int frames) {
+        long free = capacity - (t - cachedHead);
+        if (free < frames) {
+            cachedHead = head.get();
+            free = capacity - (t - cachedHead);
+        }
+        return (int) Math.min(free, frames);
+    }
+
+    private int readable(long h, int frames) {
+        long avail = cachedTail - h;
+        if (avail < frames) {
+            cachedTail = tail.get();
+            avail = cachedTail - h;
+        }
+        return (int) Math.min(avail, frames);
+    }
+
+    private int slot(long pos) {
+        return ((int) pos & mask) * channels;
+    }
+}
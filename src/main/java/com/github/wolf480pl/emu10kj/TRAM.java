@@ -17,21 +17,116 @@
  */
 package com.github.wolf480pl.emu10kj;
 
-public class TRAM implements AddressSpace {
-    private final int size;
-    private final int[] data;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * TRAM on the Java heap.
+ * <p>
+ * {@link #fork()} shares the contents between the copies until one of them is
+ * written to, and only then pays for copying them. The copies may then be
+ * used from different threads, as long as each one is handed over to its
+ * thread safely (e.g. before starting it, or through a concurrent queue).
+ */
+public class TRAM implements TramBackend {
+    private final int mask;
+    private int[] data;
+    /*
+     * How many TRAMs share data, or null if this one owns it. Each sharer
+     * copies the array before leaving the count, so the one that sees itself
+     * as the last can keep the original: nobody reads it anymore.
+     */
+    private AtomicInteger sharers;
+
+    /**
+     * @param size in words, must be a power of two
+     */
     public TRAM(int size) {
-        this.size = size;
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("TRAM size must be a power of two: " + size);
+        }
+        this.mask = size - 1;
         this.data = new int[size];
     }
 
+    private TRAM(TRAM from) {
+        this.mask = from.mask;
+        this.data = from.data;
+        this.sharers = from.sharers;
+    }
+
+    /**
+     * A copy of this TRAM that shares its contents until either of them is
+     * written. Must not run concurrently with writes to this TRAM.
+     */
+    public TRAM fork() {
+        if (sharers == null) {
+            sharers = new AtomicInteger(1);
+        }
+        sharers.incrementAndGet();
+        return new TRAM(this);
+    }
+
+    private void unshare() {
+        int[] copy = null;
+        while (true) {
+            int count = sharers.get();
+            if (count == 1) {
+                break;
+            }
+            if (copy == null) {
+                copy = data.clone();
+            }
+            if (sharers.compareAndSet(count, count - 1)) {
+                data = copy;
+                break;
+            }
+        }
+        sharers = null;
+    }
+
+    @Override
+    public int size() {
+        return data.length;
+    }
+
+    @Override
     public int read(int addr) {
-        return data[addr % size];
+        return data[addr & mask];
     }
 
+    @Override
     public void write(int addr, int value) {
-        data[addr % size] = value;
+        if (sharers != null) {
+            unshare();
+        }
+        data[addr & mask] = value;
+    }
+
+    @Override
+    public void read(int addr, int[] dst, int off, int len) {
+        while (len > 0) {
+            int start = addr & mask;
+            int n = Math.min(len, data.length - start);
+            System.arraycopy(data, start, dst, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(int addr, int[] src, int off, int len) {
+        if (sharers != null) {
+            unshare();
+        }
+        while (len > 0) {
+            int start = addr & mask;
+            int n = Math.min(len, data.length - start);
+            System.arraycopy(src, off, data, start, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }
     }
 
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * Engine that pre-decodes a program into an array of {@link ThreadedProgram}
+ * steps, for when generating classes with {@link BytecodeCompiler} is not an
+ * option.
+ */
+public class ThreadedEngine implements Engine {
+
+    @Override
+    public Program bind(Program program, Emu10k1 dsp) {
+        return new ThreadedProgram(program, dsp);
+    }
+}
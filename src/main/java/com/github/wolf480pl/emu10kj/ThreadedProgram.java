@@ -0,0 +1,458 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import gnu.trove.map.TShortIntMap;
+
+/**
+ * A program decoded once into one specialized step per instruction, with all
+ * the operands resolved to the memory of the DSP it's bound to.
+ */
+public class ThreadedProgram implements Program {
+    private final Program source;
+    private final Step[] steps;
+
+    public ThreadedProgram(Program source, Emu10k1 dsp) {
+        this.source = source;
+        Instruction[] code = source.getInstructions();
+        SkipTable skips = new SkipTable(code);
+        this.steps = new Step[code.length];
+        for (int i = 0; i < code.length; ++i) {
+            steps[i] = decode(code[i], dsp, skips.target(i));
+            if (skips.readsCcr()) {
+                steps[i].ccr = dsp;
+            }
+        }
+    }
+
+    @Override
+    public int getInstrCount() {
+        return source.getInstrCount();
+    }
+
+    @Override
+    public int getGPRCount() {
+        return source.getGPRCount();
+    }
+
+    @Override
+    public int getItramSize() {
+        return source.getItramSize();
+    }
+
+    @Override
+    public int getXtramSize() {
+        return source.getXtramSize();
+    }
+
+    @Override
+    public Instruction[] getInstructions() {
+        return source.getInstructions();
+    }
+
+    @Override
+    public TShortIntMap getInitialValues() {
+        return source.getInitialValues();
+    }
+
+    @Override
+    public void run(DSP dsp) {
+        Accumulator accu = dsp.accumulator();
+        int pc = 0;
+        while (pc < steps.length) {
+            pc = steps[pc].exec(accu, pc);
+        }
+    }
+
+    /**
+     * @param target where the instruction jumps to if it's a SKIP, or -1 if
+     *        that's only known at run time
+     */
+    private static Step decode(Instruction instr, Emu10k1 dsp, int target) {
+        Operand r = dsp.operand(instr.getRegR());
+        Operand a = instr.getRegA() == Emu10k1.ACCU ? null : dsp.operand(instr.getRegA());
+        Operand x = dsp.operand(instr.getRegX());
+        Operand y = dsp.operand(instr.getRegY());
+        switch (instr.getOpcode()) {
+            case Opcodes.MACS:
+                return new Macs(r, a, x, y);
+            case Opcodes.MACSN:
+                return new Macsn(r, a, x, y);
+            case Opcodes.MACW:
+                return new Macw(r, a, x, y);
+            case Opcodes.MACWN:
+                return new Macwn(r, a, x, y);
+            case Opcodes.MACINTS:
+                return new Macints(r, a, x, y);
+            case Opcodes.MACINTW:
+                return new Macintw(r, a, x, y);
+            case Opcodes.ACC3:
+                return new Acc3(r, a, x, y);
+            case Opcodes.MACMV:
+                return new Macmv(r, a, x, y);
+            case Opcodes.ANDXOR:
+                return new Andxor(r, a, x, y);
+            case Opcodes.TESTNEG:
+                return new Testneg(r, a, x, y);
+            case Opcodes.LIMIT:
+                return new Limit(r, a, x, y);
+            case Opcodes.LIMITL:
+                return new Limitl(r, a, x, y);
+            case Opcodes.LOG:
+                return new Log(r, a, x, y);
+            case Opcodes.EXP:
+                return new Exp(r, a, x, y);
+            case Opcodes.INTERP:
+                return new Interp(r, a, x, y);
+            case Opcodes.SKIP:
+                if (target >= 0) {
+                    return new Skip(r, a, x, y, target);
+                }
+                return new DynamicSkip(r, a, x, y);
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + instr.getOpcode());
+        }
+    }
+
+    protected abstract static class Step {
+        protected final Operand r, a, x, y;
+        /**
+         * Where to store the flags, or null if the program never reads CCR.
+         */
+        protected DSP ccr;
+
+        /**
+         * @param a the A operand, or null if A is the accumulator
+         */
+        protected Step(Operand r, Operand a, Operand x, Operand y) {
+            this.r = r;
+            this.a = a;
+            this.x = x;
+            this.y = y;
+        }
+
+        protected final long a(Accumulator accu) {
+            return a == null ? accu.read() : a.read();
+        }
+
+        /**
+         * Starts a MAC: unless A is the accumulator itself, loads A into it,
+         * so that the term is then added on all of its bits.
+         */
+        protected final void loadA(Accumulator accu) {
+            if (a != null) {
+                accu.write(a.read());
+            }
+        }
+
+        /**
+         * Writes CCR after an instruction that wrote res to R.
+         */
+        protected final void flags(int res) {
+            if (ccr != null) {
+                ccr.writeCcr(Alu.flags(res));
+            }
+        }
+
+        /**
+         * Writes CCR after an instruction that derived res from the
+         * accumulator.
+         */
+        protected final void flags(int res, Accumulator accu, boolean saturate) {
+            if (ccr != null) {
+                ccr.writeCcr(Alu.flags(res, accu.getHigh(), accu.getLow(), saturate));
+            }
+        }
+
+        /**
+         * @param pc the index of this step
+         * @return the index of the next step to execute
+         */
+        public abstract int exec(Accumulator accu, int pc);
+    }
+
+    private static final class Macs extends Step {
+        Macs(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            loadA(accu);
+            accu.add(Alu.macs(x.read(), y.read()));
+            int res = accu.clamp();
+            r.write(res);
+            flags(res, accu, true);
+            return pc + 1;
+        }
+    }
+
+    private static final class Macsn extends Step {
+        Macsn(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            loadA(accu);
+            accu.add(Alu.macsn(x.read(), y.read()));
+            int res = accu.clamp();
+            r.write(res);
+            flags(res, accu, true);
+            return pc + 1;
+        }
+    }
+
+    private static final class Macw extends Step {
+        Macw(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            loadA(accu);
+            accu.add(Alu.macs(x.read(), y.read()));
+            int res = (int) accu.getLow();
+            r.write(res);
+            flags(res, accu, false);
+            return pc + 1;
+        }
+    }
+
+    private static final class Macwn extends Step {
+        Macwn(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            loadA(accu);
+            accu.add(Alu.macsn(x.read(), y.read()));
+            int res = (int) accu.getLow();
+            r.write(res);
+            flags(res, accu, false);
+            return pc + 1;
+        }
+    }
+
+    private static final class Macints extends Step {
+        Macints(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            loadA(accu);
+            accu.add(Alu.macints(x.read(), y.read()));
+            int res = accu.clamp();
+            r.write(res);
+            flags(res, accu, true);
+            return pc + 1;
+        }
+    }
+
+    private static final class Macintw extends Step {
+        Macintw(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            loadA(accu);
+            accu.add(Alu.macints(x.read(), y.read()));
+            int res = (int) accu.getLow();
+            r.write(res);
+            flags(res, accu, false);
+            return pc + 1;
+        }
+    }
+
+    private static final class Acc3 extends Step {
+        Acc3(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            loadA(accu);
+            accu.add(x.read());
+            accu.add(y.read());
+            int res = accu.clamp();
+            r.write(res);
+            flags(res, accu, true);
+            return pc + 1;
+        }
+    }
+
+    private static final class Macmv extends Step {
+        Macmv(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int a = (int) a(accu);
+            int x = this.x.read();
+            int y = this.y.read();
+            r.write(a);
+            accu.add(Alu.macints(x, y));
+            flags(a);
+            return pc + 1;
+        }
+    }
+
+    private static final class Andxor extends Step {
+        Andxor(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int res = Alu.andxor((int) a(accu), x.read(), y.read());
+            r.write(res);
+            accu.write(res);
+            flags(res);
+            return pc + 1;
+        }
+    }
+
+    private static final class Testneg extends Step {
+        Testneg(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int res = Alu.testneg(a(accu), x.read(), y.read());
+            r.write(res);
+            accu.write(res);
+            flags(res);
+            return pc + 1;
+        }
+    }
+
+    private static final class Limit extends Step {
+        Limit(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int res = Alu.limit(a(accu), x.read(), y.read());
+            r.write(res);
+            accu.write(res);
+            flags(res);
+            return pc + 1;
+        }
+    }
+
+    private static final class Limitl extends Step {
+        Limitl(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int res = Alu.limitl(a(accu), x.read(), y.read());
+            r.write(res);
+            accu.write(res);
+            flags(res);
+            return pc + 1;
+        }
+    }
+
+    private static final class Log extends Step {
+        Log(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int res = Alu.log(a(accu), x.read(), y.read());
+            r.write(res);
+            accu.write(res);
+            flags(res);
+            return pc + 1;
+        }
+    }
+
+    private static final class Exp extends Step {
+        Exp(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int res = Alu.exp((int) a(accu), x.read(), y.read());
+            r.write(res);
+            accu.write(res);
+            flags(res);
+            return pc + 1;
+        }
+    }
+
+    private static final class Interp extends Step {
+        Interp(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            long acc = Alu.interp(a(accu), x.read(), y.read());
+            r.write((int) acc);
+            accu.write(acc);
+            flags((int) acc, accu, false);
+            return pc + 1;
+        }
+    }
+
+    /**
+     * SKIP with a constant count, so the target is known in advance.
+     */
+    private static final class Skip extends Step {
+        private final int target;
+
+        Skip(Operand r, Operand a, Operand x, Operand y, int target) {
+            super(r, a, x, y);
+            this.target = target;
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int cc = (int) a(accu);
+            int test = x.read();
+            r.write(cc);
+            return Alu.skip(cc, test) ? target : pc + 1;
+        }
+    }
+
+    private static final class DynamicSkip extends Step {
+        DynamicSkip(Operand r, Operand a, Operand x, Operand y) {
+            super(r, a, x, y);
+        }
+
+        @Override
+        public int exec(Accumulator accu, int pc) {
+            int cc = (int) a(accu);
+            int test = x.read();
+            int count = y.read();
+            r.write(cc);
+            return Alu.skip(cc, test) ? Alu.skipTarget(pc, count, Integer.MAX_VALUE) : pc + 1;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+/**
+ * Delay line memory. Addresses wrap around modulo {@link #size()}, which is
+ * a power of two, so negative addresses count back from the end.
+ */
+public interface TramBackend extends AddressSpace {
+
+    int size();
+
+    /**
+     * Copies <code>len</code> consecutive words starting at <code>addr</code>
+     * into <code>dst</code>, wrapping around at the end.
+     */
+    void read(int addr, int[] dst, int off, int len);
+
+    /**
+     * Copies <code>len</code> words from <code>src</code> to consecutive
+     * addresses starting at <code>addr</code>, wrapping around at the end.
+     */
+    void write(int addr, int[] src, int off, int len);
+}
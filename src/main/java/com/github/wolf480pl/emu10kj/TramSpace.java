@@ -17,23 +17,41 @@
  */
 package com.github.wolf480pl.emu10kj;
 
+/**
+ * The TRAM data registers: each one reads or writes the TRAM at its address
+ * register plus the current delay base address (DBAC).
+ * <p>
+ * The DBAC is latched with {@link #setOffset(int)} instead of being looked
+ * up on every access.
+ */
 public class TramSpace implements AddressSpace {
     private final AddressSpace backend;
     private final int[] addrRegs;
-    private final OffsetReg offset;
-    
-    public TramSpace(AddressSpace backend, OffsetReg offset, int[] addrRegs) {
+    private int offset;
+
+    public TramSpace(AddressSpace backend, int[] addrRegs) {
         this.backend = backend;
         this.addrRegs = addrRegs;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
         this.offset = offset;
     }
 
+    public int getLineCount() {
+        return addrRegs.length;
+    }
+
     @Override
     public int read(int addr) {
         if (addr >= addrRegs.length) {
             return 0;
         }
-        return backend.read(offset.get() + addrRegs[addr]);
+        return backend.read(offset + addrRegs[addr]);
     }
 
     @Override
@@ -41,11 +59,54 @@ public class TramSpace implements AddressSpace {
         if (addr >= addrRegs.length) {
             return;
         }
-        backend.write(offset.get() + addrRegs[addr], value);
+        backend.write(offset + addrRegs[addr], value);
     }
-    
-    public interface OffsetReg {
-        int get();
+
+    /**
+     * Same as {@link #read(int)}, without the bounds check.
+     */
+    int readLine(int line) {
+        return backend.read(offset + addrRegs[line]);
+    }
+
+    /**
+     * Same as {@link #write(int, int)}, without the bounds check.
+     */
+    void writeLine(int line, int value) {
+        backend.write(offset + addrRegs[line], value);
+    }
+
+    /**
+     * Reads what the given line would read during each of the next
+     * <code>frames</code> frames, assuming its address register doesn't
+     * change meanwhile. That's a contiguous span of the delay line, so it's
+     * copied in bulk when the backend is a {@link TramBackend}.
+     */
+    public void readBlock(int line, int[] dst, int off, int frames) {
+        int start = offset + addrRegs[line];
+        if (backend instanceof TramBackend) {
+            ((TramBackend) backend).read(start, dst, off, frames);
+            return;
+        }
+        for (int i = 0; i < frames; ++i) {
+            dst[off + i] = backend.read(start + i);
+        }
+    }
+
+    /**
+     * Writes what the given line would write during each of the next
+     * <code>frames</code> frames, the counterpart of
+     * {@link #readBlock(int, int[], int, int)}.
+     */
+    public void writeBlock(int line, int[] src, int off, int frames) {
+        int start = offset + addrRegs[line];
+        if (backend instanceof TramBackend) {
+            ((TramBackend) backend).write(start, src, off, frames);
+            return;
+        }
+        for (int i = 0; i < frames; ++i) {
+            backend.write(start + i, src[off + i]);
+        }
     }
 
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How {@link RealtimeDriver} waits for the next block's deadline, trading CPU
+ * time for how precisely it wakes up.
+ */
+public enum WaitStrategy {
+    /**
+     * Spins on {@link System#nanoTime()}, keeping a core busy all the time.
+     */
+    BUSY_SPIN {
+        @Override
+        public void waitUntil(long deadline) {
+            while (System.nanoTime() - deadline < 0) {
+                // spin
+            }
+        }
+    },
+    /**
+     * Spins for up to {@link #SPIN_NANOS}, so that a deadline that is that
+     * close is met without the timer slack of parking, and parks for the rest
+     * of a longer wait.
+     */
+    SPIN_THEN_PARK {
+        @Override
+        public void waitUntil(long deadline) {
+            long spinUntil = System.nanoTime() + SPIN_NANOS;
+            BUSY_SPIN.waitUntil(deadline - spinUntil < 0 ? deadline : spinUntil);
+            PARK.waitUntil(deadline);
+        }
+    },
+    /**
+     * Only parks, which is the cheapest but wakes up the latest.
+     */
+    PARK {
+        @Override
+        public void waitUntil(long deadline) {
+            long left;
+            while ((left = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(left);
+            }
+        }
+    };
+
+    /**
+     * How long {@link #SPIN_THEN_PARK} spins before it parks.
+     */
+    public static final long SPIN_NANOS = 100000;
+
+    /**
+     * Returns no earlier than <code>deadline</code>, in
+     * {@link System#nanoTime()} terms.
+     */
+    public abstract void waitUntil(long deadline);
+}
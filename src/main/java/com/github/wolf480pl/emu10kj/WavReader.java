@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the samples of a PCM or float WAV file, a block at a time.
+ * <p>
+ * Only the chunk headers are parsed, and the data is read with positional
+ * reads straight into the caller's buffer, so memory use doesn't depend on
+ * the length of the file.
+ */
+public class WavReader implements Closeable {
+    private static final int RIFF = 0x46464952, WAVE = 0x45564157, FMT = 0x20746d66, DATA = 0x61746164;
+    private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+    private final FileChannel ch;
+    private final Pcm.Encoding encoding;
+    private final int channels;
+    private final int sampleRate;
+    private final long dataStart;
+    private final long frames;
+    private long frame = 0;
+
+    public WavReader(Path file) throws IOException {
+        this.ch = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(buf, 0, 12);
+            if (buf.getInt(0) != RIFF || buf.getInt(8) != WAVE) {
+                throw new IOException("Not a WAV file: " + file);
+            }
+            Pcm.Encoding encoding = null;
+            int channels = 0, sampleRate = 0;
+            long dataStart, frames;
+            long pos = 12;
+            while (true) {
+                readFully(buf, pos, 8);
+                int id = buf.getInt(0);
+                long size = buf.getInt(4) & 0xffffffffL;
+                if (id == FMT) {
+                    readFully(buf, pos + 8, (int) Math.min(size, 40));
+                    int format = buf.getShort(0) & 0xffff;
+                    channels = buf.getShort(2) & 0xffff;
+                    sampleRate = buf.getInt(4);
+                    int bits = buf.getShort(14) & 0xffff;
+                    if (format == FORMAT_EXTENSIBLE && size >= 26) {
+                        // The subformat GUID starts with the actual format tag
+                        format = buf.getShort(24) & 0xffff;
+                    }
+                    encoding = Pcm.Encoding.of(format, bits);
+                } else if (id == DATA) {
+                    if (encoding == null) {
+                        throw new IOException("No fmt chunk before data in " + file);
+                    }
+                    // Streaming writers leave the size unset, so trust the file length
+                    size = Math.min(size, ch.size() - pos - 8);
+                    dataStart = pos + 8;
+                    frames = size / (channels * encoding.bytes());
+                    break;
+                }
+                pos += 8 + size + (size & 1);
+            }
+            this.encoding = encoding;
+            this.channels = channels;
+            this.dataStart = dataStart;
+            this.frames = frames;
+            this.sampleRate = sampleRate;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long pos, int len) throws IOException {
+        buf.clear().limit(len);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) {
+                throw new EOFException("Truncated WAV header");
+            }
+        }
+    }
+
+    public Pcm.Encoding getEncoding() {
+        return encoding;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public int getFrameBytes() {
+        return channels * encoding.bytes();
+    }
+
+    /**
+     * Reads up to <code>count</code> frames into <code>dst</code> at its
+     * position, which is left after them.
+     *
+     * @return the number of frames read, less than <code>count</code> only at
+     *         the end of the data
+     */
+    public int read(ByteBuffer dst, int count) throws IOException {
+        int n = (int) Math.min(count, frames - frame);
+        int frameBytes = getFrameBytes();
+        ByteBuffer view = dst.duplicate();
+        view.limit(view.position() + n * frameBytes);
+        long pos = dataStart + frame * frameBytes;
+        while (view.hasRemaining()) {
+            int read = ch.read(view, pos);
+            if (read < 0) {
+                throw new EOFException("WAV data ends early");
+            }
+            pos += read;
+        }
+        dst.position(view.position());
+        frame += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders WAV files through a program offline, as fast as the DSP can go.
+ * <p>
+ * Each channel of an input file is routed to an FX bus or external input of
+ * the DSP, and each channel of an output file is taken from an external or FX2
+ * output. Files are streamed a block at a time through direct buffers, so
+ * memory use is the same for any length. Rendering goes on until the longest
+ * input ends, plus an optional tail for effects that ring out.
+ * <p>
+ * Can also be run from the command line, see {@link #main(String[])}.
+ */
+public class WavRenderer {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    /**
+     * Skips a channel when used as its address.
+     */
+    public static final short UNUSED = -1;
+
+    private final Program program;
+    private final Engine engine;
+    private final int blockSize;
+    private final List<Route> inputs = new ArrayList<>();
+    private final List<Route> outputs = new ArrayList<>();
+    private long tailFrames = 0;
+    private Pcm.Dither dither = Pcm.Dither.TRUNCATE;
+
+    /**
+     * @param engine engine to bind the program with, or null to run it as it is
+     */
+    public WavRenderer(Program program, Engine engine, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        this.program = program;
+        this.engine = engine;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Feeds channel <code>i</code> of <code>file</code> to the DSP input at
+     * <code>addresses[i]</code> (FX bus or external input).
+     */
+    public void addInput(Path file, short... addresses) {
+        for (short address : addresses) {
+            if (address != UNUSED && (address < Emu10k1.FX_START || address > Emu10k1.EXT_IN_END)) {
+                throw new IllegalArgumentException("Not an input: " + address);
+            }
+        }
+        inputs.add(new Route(file, null, addresses.clone()));
+    }
+
+    /**
+     * Writes the DSP output at <code>addresses[i]</code> (external or FX2
+     * output) to channel <code>i</code> of <code>file</code>.
+     */
+    public void addOutput(Path file, Pcm.Encoding encoding, short... addresses) {
+        for (short address : addresses) {
+            if (address != UNUSED && (address < Emu10k1.EXT_OUT_START || address > Emu10k1.FX2_END)) {
+                throw new IllegalArgumentException("Not an output: " + address);
+            }
+        }
+        outputs.add(new Route(file, encoding, addresses.clone()));
+    }
+
+    /**
+     * Sets how many frames to render after the inputs end.
+     */
+    public void setTailFrames(long tailFrames) {
+        this.tailFrames = tailFrames;
+    }
+
+    /**
+     * Sets how the outputs narrower than the DSP words are quantized.
+     */
+    public void setDither(Pcm.Dither dither) {
+        this.dither = dither;
+    }
+
+    /**
+     * Renders all the outputs, overwriting their files.
+     *
+     * @return the number of frames rendered
+     */
+    public long render() throws IOException {
+        PlanarIO fxbus = new PlanarIO(blockSize);
+        PlanarIO extIO = new PlanarIO(blockSize);
+        Emu10k1 dsp = new Emu10k1(fxbus, extIO, new TRAM(tramSize(program.getXtramSize())));
+        if (engine != null) {
+            dsp.loadProgram(program, engine);
+        } else {
+            dsp.loadProgram(program);
+        }
+
+        List<Closeable> open = new ArrayList<>();
+        try {
+            WavReader[] readers = new WavReader[inputs.size()];
+            int sampleRate = 0;
+            long frames = 0;
+            for (int i = 0; i < readers.length; ++i) {
+                readers[i] = new WavReader(inputs.get(i).file);
+                open.add(readers[i]);
+                if (sampleRate != 0 && readers[i].getSampleRate() != sampleRate) {
+                    throw new IOException("Sample rates differ: " + inputs.get(i).file);
+                }
+                if (inputs.get(i).addresses.length > readers[i].getChannels()) {
+                    throw new IOException("More channels routed than there are in " + inputs.get(i).file);
+                }
+                sampleRate = readers[i].getSampleRate();
+                frames = Math.max(frames, readers[i].getFrames());
+            }
+            if (sampleRate == 0) {
+                sampleRate = As10k1Compiler.SAMPLE_RATE;
+            }
+            WavWriter[] writers = new WavWriter[outputs.size()];
+            for (int i = 0; i < writers.length; ++i) {
+                Route out = outputs.get(i);
+                writers[i] = new WavWriter(out.file, out.encoding, out.addresses.length, sampleRate);
+                open.add(writers[i]);
+            }
+            Job job = new Job(dsp, fxbus, extIO, frames + tailFrames, readers, writers);
+            try {
+                job.render(blockSize);
+            } catch (IOError e) {
+                throw e.getCause();
+            }
+            return job.getFrames();
+        } finally {
+            IOException failure = null;
+            for (Closeable c : open) {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static int tramSize(int words) {
+        return words <= 1 ? 1 : Integer.highestOneBit(words - 1) << 1;
+    }
+
+    private static int[][] planes(PlanarIO fxbus, PlanarIO extIO, short[] addresses) {
+        int[][] planes = new int[addresses.length][];
+        for (int i = 0; i < addresses.length; ++i) {
+            short a = addresses[i];
+            if (a == UNUSED) {
+                continue;
+            } else if (a <= Emu10k1.FX_END) {
+                planes[i] = fxbus.input(a - Emu10k1.FX_START);
+            } else if (a <= Emu10k1.EXT_IN_END) {
+                planes[i] = extIO.input(a - Emu10k1.EXT_IN_START);
+            } else if (a <= Emu10k1.EXT_OUT_END) {
+                planes[i] = extIO.output(a - Emu10k1.EXT_OUT_START);
+            } else {
+                planes[i] = fxbus.output(a - Emu10k1.FX2_START);
+            }
+        }
+        return planes;
+    }
+
+    private static final class Route {
+        final Path file;
+        final Pcm.Encoding encoding;
+        final short[] addresses;
+
+        Route(Path file, Pcm.Encoding encoding, short[] addresses) {
+            this.file = file;
+            this.encoding = encoding;
+            this.addresses = addresses;
+        }
+    }
+
+    /**
+     * Carries an IOException through {@link RenderJob#render(int)}.
+     */
+    private static final class IOError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        IOError(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private class Job extends RenderJob {
+        private final WavReader[] readers;
+        private final WavWriter[] writers;
+        private final Pcm[] decoders, encoders;
+        private final int[][][] inPlanes, outPlanes;
+        private final ByteBuffer[] inBufs, outBufs;
+
+        Job(Emu10k1 dsp, PlanarIO fxbus, PlanarIO extIO, long frames, WavReader[] readers, WavWriter[] writers) {
+            super(dsp, fxbus, extIO, frames);
+            this.readers = readers;
+            this.writers = writers;
+            this.decoders = new Pcm[readers.length];
+            this.inPlanes = new int[readers.length][][];
+            this.inBufs = new ByteBuffer[readers.length];
+            for (int i = 0; i < readers.length; ++i) {
+                short[] addresses = new short[readers[i].getChannels()];
+                Arrays.fill(addresses, UNUSED);
+                short[] routed = inputs.get(i).addresses;
+                System.arraycopy(routed, 0, addresses, 0, routed.length);
+                decoders[i] = new Pcm(readers[i].getEncoding(), readers[i].getChannels());
+                inPlanes[i] = planes(fxbus, extIO, addresses);
+                inBufs[i] = ByteBuffer.allocateDirect(blockSize * readers[i].getFrameBytes());
+            }
+            this.encoders = new Pcm[writers.length];
+            this.outPlanes = new int[writers.length][][];
+            this.outBufs = new ByteBuffer[writers.length];
+            for (int i = 0; i < writers.length; ++i) {
+                encoders[i] = new Pcm(writers[i].getEncoding(), writers[i].getChannels());
+                encoders[i].setDither(dither);
+                outPlanes[i] = planes(fxbus, extIO, outputs.get(i).addresses);
+                outBufs[i] = ByteBuffer.allocateDirect(blockSize * writers[i].getFrameBytes());
+            }
+        }
+
+        @Override
+        protected void fill(long frame, int count) {
+            try {
+                for (int i = 0; i < readers.length; ++i) {
+                    ByteBuffer buf = inBufs[i];
+                    buf.clear();
+                    int n = readers[i].read(buf, count);
+                    buf.flip();
+                    decoders[i].decode(buf, inPlanes[i], 0, n);
+                    if (n < count) {
+                        for (int[] plane : inPlanes[i]) {
+                            if (plane != null) {
+                                Arrays.fill(plane, n, count, 0);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+
+        @Override
+        protected void drain(long frame, int count) {
+            try {
+                for (int i = 0; i < writers.length; ++i) {
+                    ByteBuffer buf = outBufs[i];
+                    buf.clear();
+                    encoders[i].encode(outPlanes[i], 0, buf, count);
+                    buf.flip();
+                    writers[i].write(buf);
+                }
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+    }
+
+    private static final String USAGE = "Usage: WavRenderer [options] program -i in.wav:ADDR,... -o out.wav:ADDR,...\n"
+            + "  program      as10k1 assembly (*.asm) or raw microcode\n"
+            + "  -i FILE:MAP  input, its channels routed to FX_n or IN_n, or - to skip one\n"
+            + "  -o FILE:MAP  output, its channels taken from OUT_n or FX2_n, or - for silence\n"
+            + "  -e ENGINE    interpreted, threaded, bytecode (default) or kernel\n"
+            + "  -b FRAMES    block size (default " + DEFAULT_BLOCK_SIZE + ")\n"
+            + "  -t FRAMES    frames to render after the inputs end (default 0)\n"
+            + "  -f FORMAT    format of the outputs after it: s16 (default), s24, s32 or f32\n"
+            + "  -d DITHER    quantization of s16 and s24 outputs: truncate (default), round or tpdf\n"
+            + "  -x WORDS     external TRAM size for raw microcode (default 1048576)\n"
+            + "Addresses can also be numbers, e.g. 0x20.";
+
+    /**
+     * Command line entry point, run without arguments for usage.
+     */
+    public static void main(String[] args) throws IOException {
+        String engineName = "bytecode";
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        long tail = 0;
+        Pcm.Encoding encoding = Pcm.Encoding.S16;
+        Pcm.Dither dither = Pcm.Dither.TRUNCATE;
+        int xtram = 1 << 20;
+        String programFile = null;
+        List<String> ins = new ArrayList<>(), outs = new ArrayList<>();
+        List<Pcm.Encoding> encodings = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if (!arg.startsWith("-")) {
+                    programFile = arg;
+                    continue;
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "-i":
+                        ins.add(value);
+                        break;
+                    case "-o":
+                        outs.add(value);
+                        encodings.add(encoding);
+                        break;
+                    case "-e":
+                        engineName = value;
+                        break;
+                    case "-b":
+                        blockSize = Integer.parseInt(value);
+                        break;
+                    case "-t":
+                        tail = Long.parseLong(value);
+                        break;
+                    case "-f":
+                        encoding = Pcm.Encoding.valueOf(value.toUpperCase());
+                        break;
+                    case "-d":
+                        dither = Pcm.Dither.valueOf(value.toUpperCase());
+                        break;
+                    case "-x":
+                        xtram = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (programFile == null || outs.isEmpty()) {
+                throw new IllegalArgumentException("Need a program and an output");
+            }
+
+            Engine engine;
+            switch (engineName) {
+                case "interpreted":
+                    engine = null;
+                    break;
+                case "threaded":
+                    engine = new ThreadedEngine();
+                    break;
+                case "bytecode":
+                    engine = new BytecodeCompiler();
+                    break;
+                case "kernel":
+                    engine = new BytecodeCompiler(true);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown engine " + engineName);
+            }
+
+            Path path = Paths.get(programFile);
+            Program program;
+            if (programFile.endsWith(".asm")) {
+                program = new As10k1Compiler().compile(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+            } else {
+                program = new InterpretedProgram(Microcode.load(path), Emu10k1.GPR_COUNT, Emu10k1.ITRAM_SIZE, xtram);
+            }
+
+            WavRenderer renderer = new WavRenderer(program, engine, blockSize);
+            renderer.setTailFrames(tail);
+            renderer.setDither(dither);
+            for (String in : ins) {
+                int colon = in.lastIndexOf(':');
+                renderer.addInput(Paths.get(in.substring(0, colon)), parseAddresses(in.substring(colon + 1)));
+            }
+            for (int i = 0; i < outs.size(); ++i) {
+                String out = outs.get(i);
+                int colon = out.lastIndexOf(':');
+                renderer.addOutput(Paths.get(out.substring(0, colon)), encodings.get(i), parseAddresses(out.substring(colon + 1)));
+            }
+
+            long start = System.nanoTime();
+            long frames = renderer.render();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.printf("Rendered %d frames in %.2f s (%.0f frames/s)%n", frames, seconds, frames / seconds);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+    }
+
+    private static short[] parseAddresses(String map) {
+        String[] names = map.split(",");
+        short[] addresses = new short[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            addresses[i] = parseAddress(names[i].trim());
+        }
+        return addresses;
+    }
+
+    private static short parseAddress(String name) {
+        if (name.equals("-")) {
+            return UNUSED;
+        } else if (name.startsWith("FX2_")) {
+            return channel(Emu10k1.FX2_START, name.substring(4));
+        } else if (name.startsWith("FX_")) {
+            return channel(Emu10k1.FX_START, name.substring(3));
+        } else if (name.startsWith("IN_")) {
+            return channel(Emu10k1.EXT_IN_START, name.substring(3));
+        } else if (name.startsWith("OUT_")) {
+            return channel(Emu10k1.EXT_OUT_START, name.substring(4));
+        }
+        return Short.decode(name);
+    }
+
+    private static short channel(short start, String index) {
+        int i = Integer.parseInt(index);
+        if (i < 0 || i >= PlanarIO.CHANNELS) {
+            throw new IllegalArgumentException("No such channel: " + index);
+        }
+        return (short) (start + i);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015 Wolf480pl <wolf480@interia.pl>
+ * This program is licensed under the GNU Lesser General Public License.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.emu10kj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams samples into a WAV file, filling in the chunk sizes (and the pad
+ * byte after odd-sized data) on {@link #close()}. Plain WAV is limited to
+ * 4 GiB of data.
+ */
+public class WavWriter implements Closeable {
+    private static final int HEADER_SIZE = 44;
+    // Leaves room for the pad byte
+    private static final long MAX_DATA = 0xffffffffL - HEADER_SIZE + 8 - 1;
+
+    private final FileChannel ch;
+    private final Pcm.Encoding encoding;
+    private final int channels;
+    private long dataBytes = 0;
+
+    public WavWriter(Path file, Pcm.Encoding encoding, int channels, int sampleRate) throws IOException {
+        this.ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.encoding = encoding;
+        this.channels = channels;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952).putInt(0).putInt(0x45564157);
+        header.putInt(0x20746d66).putInt(16);
+        header.putShort((short) encoding.wavFormat()).putShort((short) channels);
+        header.putInt(sampleRate).putInt(sampleRate * getFrameBytes());
+        header.putShort((short) getFrameBytes()).putShort((short) encoding.bits());
+        header.putInt(0x61746164).putInt(0);
+        header.flip();
+        try {
+            writeFully(header, 0);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    public Pcm.Encoding getEncoding() {
+        return encoding;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getFrameBytes() {
+        return channels * encoding.bytes();
+    }
+
+    /**
+     * Appends the remaining bytes of <code>src</code>, which should be whole
+     * frames.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        if (dataBytes + src.remaining() > MAX_DATA) {
+            throw new IOException("WAV data over 4 GiB");
+        }
+        dataBytes += src.remaining();
+        writeFully(src, HEADER_SIZE + dataBytes - src.remaining());
+    }
+
+    private void writeFully(ByteBuffer src, long pos) throws IOException {
+        while (src.hasRemaining()) {
+            pos += ch.write(src, pos);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // RIFF chunks are padded to an even size, which the RIFF size counts
+            long pad = dataBytes & 1;
+            if (pad != 0) {
+                writeFully(ByteBuffer.allocate(1), HEADER_SIZE + dataBytes);
+            }
+            ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            size.putInt(0, (int) (dataBytes + pad + HEADER_SIZE - 8));
+            writeFully(size, 4);
+            size.clear();
+            size.putInt(0, (int) dataBytes);
+            writeFully(size, HEADER_SIZE - 4);
+        } finally {
+            ch.close();
+        }
+    }
+}